@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * Word2Mobi :: Benchmarks
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+import org.kdp.word.Transformer;
+import org.kdp.word.Transformer.Context;
+import org.kdp.word.Traversal;
+import org.kdp.word.VisitingTransformer;
+import org.kdp.word.transformer.ImageTransformer;
+import org.kdp.word.transformer.ImageTransformer.Images;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated Word HTML book in a temporary basedir
+ * 
+ * The document size is given by the number of body paragraphs. Every chapter
+ * is a WordSection with a TOC entry, list paragraphs and footnotes.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkBook {
+
+    static final int CHAPTER_PARAGRAPHS = 50;
+    
+    @Param({ "100", "1000", "10000" })
+    int paragraphs;
+    
+    Path basedir;
+    Path bookdir;
+    File input;
+    Parser parser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        basedir = Files.createTempDirectory("word2mobi-benchmark");
+        copyResource("benchmark.properties");
+        copyResource("opf-template.xml");
+        copyResource("external.css");
+        copyResource("images/Arabia600AD-550w.jpg");
+        
+        Path path = basedir.resolve("Book.html");
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(generate(paragraphs));
+        }
+        input = path.toFile();
+        bookdir = basedir.resolve("book");
+        
+        System.setProperty(Parser.SYSTEM_PROPERTY_CONFIGURATION, basedir.resolve("benchmark.properties").toUri().toString());
+        parser = new ParserBuilder()
+                .bookdir(bookdir.toString())
+                .css(basedir.resolve("external.css").toString())
+                .mobi(basedir.resolve("Book.mobi").toString())
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.walkFileTree(basedir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Run a single transformer the way the parser does. 
+     * Includes the images that the {@link ImageTransformer} processes in the background.
+     */
+    static void transform(Context context, Transformer tr) {
+        if (tr instanceof VisitingTransformer) {
+            Traversal traversal = new Traversal();
+            ((VisitingTransformer) tr).registerVisitors(context, traversal);
+            traversal.walk(context, context.getSourceRoot());
+        }
+        tr.transform(context);
+        Images images = context.getAttribute(Images.class);
+        if (tr instanceof ImageTransformer && images != null) {
+            images.await();
+        }
+    }
+    
+    static String generate(int paragraphs) {
+        int chapters = (paragraphs + CHAPTER_PARAGRAPHS - 1) / CHAPTER_PARAGRAPHS;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<html>\n<head>\n");
+        sb.append("<meta http-equiv=Content-Type content=\"text/html; charset=utf-8\">\n");
+        sb.append("<meta name=Generator content=\"Microsoft Word 14\">\n");
+        sb.append("<title>Benchmark</title>\n");
+        sb.append("<style>\n<!--\n");
+        sb.append("p.MsoNormal, li.MsoNormal, div.MsoNormal\n\t{margin-top:0cm;\n\tmargin-bottom:6.0pt;\n\tfont-size:10.0pt;\n\tfont-family:\"Times New Roman\";}\n");
+        sb.append("p.MsoListParagraph, li.MsoListParagraph, div.MsoListParagraph\n\t{margin-left:36.0pt;\n\tfont-size:10.0pt;}\n");
+        sb.append("p.MsoQuote, li.MsoQuote, div.MsoQuote\n\t{font-style:italic;}\n");
+        sb.append("-->\n</style>\n</head>\n<body lang=EN-US>\n");
+        
+        sb.append("<div class=WordSection1>\n");
+        sb.append("<p class=MsoTitle>Benchmark</p>\n");
+        sb.append("<p class=MsoNormal><img src=\"images/Arabia600AD-550w.jpg\"></p>\n");
+        for (int chapter = 1; chapter <= chapters; chapter++) {
+            sb.append("<p class=MsoToc1><span>Chapter ").append(chapter).append("</span><span>....... </span><span>").append(chapter).append("</span></p>\n");
+        }
+        sb.append("</div>\n");
+        
+        int footnote = 0;
+        for (int i = 0; i < paragraphs; i++) {
+            int chapter = i / CHAPTER_PARAGRAPHS + 1;
+            if (i % CHAPTER_PARAGRAPHS == 0) {
+                if (chapter > 1) {
+                    sb.append("</div>\n");
+                }
+                sb.append("<div class=WordSection").append(chapter + 1).append(">\n");
+                sb.append("<h1><a name=\"_Toc").append(chapter).append("\">Chapter ").append(chapter).append("</a></h1>\n");
+            }
+            switch (i % 10) {
+                case 3:
+                case 4:
+                    sb.append("<p class=MsoListParagraph style='margin-left:36.0pt;text-indent:-18.0pt'><span style='font-family:Symbol'>&middot;<span style='font:7.0pt \"Times New Roman\"'>&nbsp;&nbsp;&nbsp;&nbsp;\n");
+                    sb.append("</span></span>List item ").append(i).append("</p>\n");
+                    break;
+                case 7:
+                    sb.append("<p class=MsoQuote>&#8222;Gr&uuml;&szlig;e aus M&uuml;nchen&#8220;, sagte er.</p>\n");
+                    break;
+                case 9:
+                    footnote++;
+                    sb.append("<p class=MsoNormal>Paragraph ").append(i).append(" has a footnote");
+                    sb.append("<a href=\"#_ftn").append(footnote).append("\" name=\"_ftnref").append(footnote).append("\" title=\"\"><span class=MsoFootnoteReference>");
+                    sb.append("<span style='font-size:10.0pt;font-family:\"Times New Roman\"'>[").append(footnote).append("]</span></span></a>.</p>\n");
+                    break;
+                default:
+                    sb.append("<p class=MsoNormal style='text-align:justify'><span style='font-size:11.0pt'>Lorem ipsum dolor sit amet, ");
+                    sb.append("consectetur <b>adipiscing</b> elit, sed do eiusmod tempor <i>incididunt</i> ut labore et dolore magna aliqua. ");
+                    sb.append("Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.</span></p>\n");
+            }
+        }
+        if (paragraphs > 0) {
+            sb.append("</div>\n");
+        }
+        
+        sb.append("<div style='mso-element:footnote-list'>\n");
+        for (int i = 1; i <= footnote; i++) {
+            sb.append("<div id=ftn").append(i).append(">\n");
+            sb.append("<p class=MsoFootnoteText><a href=\"#_ftnref").append(i).append("\" name=\"_ftn").append(i).append("\" title=\"\"><span class=MsoFootnoteReference>");
+            sb.append("<span style='font-size:8.0pt;font-family:\"Times New Roman\"'>[").append(i).append("]</span></span></a> Footnote text ").append(i).append("</p>\n");
+            sb.append("</div>\n");
+        }
+        sb.append("</div>\n");
+        sb.append("</body>\n</html>\n");
+        return sb.toString();
+    }
+    
+    private void copyResource(String name) throws IOException {
+        Path target = basedir.resolve(name);
+        Files.createDirectories(target.getParent());
+        try (InputStream input = BenchmarkBook.class.getResourceAsStream("/" + name)) {
+            Files.copy(input, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * #%L
+ * Word2Mobi :: Benchmarks
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.kdp.word.BuildManifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Convert the book end-to-end
+ * 
+ * A clean build removes the build manifest before each invocation so that every 
+ * file in the book dir is written again. An incremental build skips the unchanged files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessBenchmark {
+
+    @State(Scope.Thread)
+    public static class CleanBookDir {
+        
+        @Setup(Level.Invocation)
+        public void setup(BenchmarkBook book) throws IOException {
+            Files.deleteIfExists(book.bookdir.resolve(BuildManifest.FILE_NAME));
+        }
+    }
+    
+    @Benchmark
+    public String processClean(BenchmarkBook book, CleanBookDir clean) throws SAXException, IOException {
+        return book.parser.process(book.input);
+    }
+
+    @Benchmark
+    public String processIncremental(BenchmarkBook book) throws SAXException, IOException {
+        return book.parser.process(book.input);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * #%L
+ * Word2Mobi :: Benchmarks
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kdp.word.Transformer;
+import org.kdp.word.Transformer.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Run a single configured transformer in isolation
+ * 
+ * Before each invocation the document is parsed again and the transformers 
+ * that precede the measured one are applied, so that it sees the same input 
+ * as in a full run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformerBenchmark {
+
+    @Param({ "AttributeTransformer", "ImageTransformer", "ListParagraphTransformer", "MetadataTransformer", "TOCTransformer", "FootnodeTransformer",
+        "StyleTransformer", "InlineStyleTransformer", "SectionTransformer", "OPFTransformer", "MobiTransformer" })
+    String transformer;
+    
+    private Transformer target;
+    private Context context;
+
+    @Setup(Level.Invocation)
+    public void setup(BenchmarkBook book) throws SAXException, IOException {
+        List<Transformer> transformers = book.parser.getTransformers();
+        int index = indexOf(transformers);
+        context = book.parser.createContext(book.input);
+        for (Transformer tr : transformers.subList(0, index)) {
+            BenchmarkBook.transform(context, tr);
+        }
+        target = transformers.get(index);
+    }
+
+    @Benchmark
+    public Context transform() {
+        BenchmarkBook.transform(context, target);
+        return context;
+    }
+
+    private int indexOf(List<Transformer> transformers) {
+        for (int i = 0; i < transformers.size(); i++) {
+            if (transformers.get(i).getClass().getSimpleName().equals(transformer)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Transformer not configured: " + transformer);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * Word2Mobi :: Benchmarks
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.Document;
+import org.kdp.word.Transformer.Context;
+import org.kdp.word.utils.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Serialize the parsed document as XHTML
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteDocumentBenchmark {
+
+    private Context context;
+    private Document document;
+    private CountingOutputStream output;
+    
+    @Setup(Level.Trial)
+    public void setup(BenchmarkBook book) throws SAXException, IOException {
+        context = book.parser.createContext(book.input);
+        document = context.getSourceRoot().getDocument();
+        output = new CountingOutputStream();
+    }
+
+    @Benchmark
+    public long writeDocument() throws IOException {
+        IOUtils.writeDocument(context, document, output);
+        return output.count;
+    }
+    
+    // discards the output, the count keeps the writes from being optimized away
+    static class CountingOutputStream extends OutputStream {
+        long count;
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        @Override
+        public void write(byte[] bytes, int off, int len) {
+            count += len;
+        }
+    }
+}
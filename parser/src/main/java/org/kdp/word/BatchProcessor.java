@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts many input files with a single parser on a bounded worker pool.
+ * 
+ * Each input is written to its own directory below the configured book dir.
+ */
+public final class BatchProcessor {
+
+    private static Logger log = LoggerFactory.getLogger(BatchProcessor.class);
+    
+    private final Parser parser;
+    private final Options options;
+
+    public BatchProcessor(Parser parser) {
+        IllegalArgumentAssertion.assertNotNull(parser, "parser");
+        this.parser = parser;
+        this.options = parser.getOptions();
+    }
+
+    /**
+     * Expand directories to the HTML files they contain
+     */
+    public static List<File> collectInputs(List<File> arguments) {
+        List<File> result = new ArrayList<>();
+        for (File file : arguments) {
+            if (file.isDirectory()) {
+                File[] files = file.listFiles(new FileFilter() {
+                    @Override
+                    public boolean accept(File file) {
+                        String name = file.getName().toLowerCase();
+                        return file.isFile() && (name.endsWith(".html") || name.endsWith(".htm"));
+                    }
+                });
+                Arrays.sort(files);
+                result.addAll(Arrays.asList(files));
+            } else {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convert the given files and return a result for each of them in input order
+     */
+    public List<Result> process(List<File> inputs) throws InterruptedException {
+        IllegalArgumentAssertion.assertNotNull(inputs, "inputs");
+        List<Result> results = new ArrayList<>();
+        if (inputs.isEmpty()) {
+            return results;
+        }
+        int threads = Math.max(1, Math.min(options.getThreads(), inputs.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final File infile : inputs) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return processInternal(infile);
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private Result processInternal(File infile) {
+        String fname = infile.getName();
+        int dotidx = fname.lastIndexOf('.');
+        String bookname = dotidx > 0 ? fname.substring(0, dotidx) : fname;
+        Path bookdir = options.getBookDir().resolve(bookname);
+        long start = System.currentTimeMillis();
+        try {
+            parser.convert(infile, options.withBookDir(bookdir));
+            return new Result(infile, bookdir, System.currentTimeMillis() - start, null);
+        } catch (Exception ex) {
+            log.error("Cannot process: " + infile, ex);
+            return new Result(infile, bookdir, System.currentTimeMillis() - start, ex);
+        }
+    }
+
+    public static final class Result {
+        
+        private final File infile;
+        private final Path bookdir;
+        private final long millis;
+        private final Throwable error;
+        
+        Result(File infile, Path bookdir, long millis, Throwable error) {
+            this.infile = infile;
+            this.bookdir = bookdir;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        public File getInput() {
+            return infile;
+        }
+
+        public Path getBookDir() {
+            return bookdir;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (error == null) {
+                return "OK      " + infile + " -> " + bookdir + " (" + millis + " ms)";
+            } else {
+                return "FAILED  " + infile + ": " + error;
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.kdp.word.EpubPackager.EntryWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records a content hash for every file written to the book dir.
+ * 
+ * A file is only written when its bytes differ from the recorded hash, or when the 
+ * file on disk no longer has the recorded size and modification time. The manifest 
+ * is saved in the book dir when it is closed, with only the files of the current run.
+ */
+public final class BuildManifest implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(BuildManifest.class);
+    
+    public static final String FILE_NAME = ".word2mobi-manifest";
+    
+    private final Path bookDir;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final Map<Path, EntryWriter> deferred = new LinkedHashMap<>();
+    private final Set<String> current = new HashSet<>();
+    private int written;
+    private int skipped;
+
+    private BuildManifest(Path bookDir) {
+        this.bookDir = bookDir.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Load the manifest from the book dir, or start an empty one
+     */
+    public static BuildManifest load(Path bookDir) throws IOException {
+        BuildManifest manifest = new BuildManifest(bookDir);
+        Path file = manifest.bookDir.resolve(FILE_NAME);
+        if (file.toFile().isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                while (line != null) {
+                    String[] toks = line.split(" ", 4);
+                    if (toks.length == 4 && !line.startsWith("#")) {
+                        try {
+                            manifest.entries.put(toks[3], new Entry(toks[0], Long.parseLong(toks[1]), Long.parseLong(toks[2])));
+                        } catch (NumberFormatException ex) {
+                            log.warn("Invalid manifest entry: {}", line);
+                        }
+                    }
+                    line = reader.readLine();
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Get the SHA-1 of the given bytes as hex string
+     */
+    public static String digest(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * Write the bytes unless the file already has them. Return true when the file was written.
+     */
+    public boolean write(Path path, byte[] bytes) throws IOException {
+        String digest = digest(bytes);
+        if (isCurrent(path, digest)) {
+            keep(path);
+            log.debug("Unchanged: {}", path);
+            return false;
+        }
+        File parent = path.toAbsolutePath().getParent().toFile();
+        parent.mkdirs();
+        Files.write(path, bytes);
+        synchronized (this) {
+            written++;
+        }
+        record(path, digest);
+        return true;
+    }
+
+    /**
+     * Stream the content into a temp file next to the target and move it into place, 
+     * unless the file already has it. Return true when the file was written.
+     */
+    public boolean write(Path path, EntryWriter writer) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        parent.toFile().mkdirs();
+        Path temp = File.createTempFile(path.getFileName().toString(), ".tmp", parent.toFile()).toPath();
+        try {
+            MessageDigest md = newDigest();
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)), md)) {
+                writer.write(out);
+            }
+            String digest = toHex(md.digest());
+            if (isCurrent(path, digest)) {
+                keep(path);
+                log.debug("Unchanged: {}", path);
+                return false;
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                written++;
+            }
+            record(path, digest);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * True if the file was recorded with the given digest and has not been touched since
+     */
+    public synchronized boolean isCurrent(Path path, String digest) {
+        Entry entry = entries.get(getKey(path));
+        File file = path.toFile();
+        return entry != null && entry.digest.equals(digest) && file.isFile() 
+                && file.length() == entry.size && file.lastModified() == entry.modified;
+    }
+
+    /**
+     * Record the digest of the file as it is now on disk
+     */
+    public synchronized void record(Path path, String digest) {
+        File file = path.toFile();
+        String key = getKey(path);
+        entries.put(key, new Entry(digest, file.length(), file.lastModified()));
+        current.add(key);
+    }
+
+    /**
+     * Keep the entry of an unchanged file for the current run
+     */
+    public synchronized void keep(Path path) {
+        current.add(getKey(path));
+        skipped++;
+    }
+
+    /**
+     * Add a file that is written when the manifest is closed
+     */
+    public synchronized void addDeferred(Path path, EntryWriter writer) {
+        deferred.put(path, writer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Map.Entry<Path, EntryWriter>> files;
+        synchronized (this) {
+            files = new ArrayList<>(deferred.entrySet());
+            deferred.clear();
+        }
+        for (Map.Entry<Path, EntryWriter> entry : files) {
+            write(entry.getKey(), entry.getValue());
+        }
+        
+        StringBuilder content = new StringBuilder("# word2mobi build manifest: sha1 size modified path\n");
+        synchronized (this) {
+            // Drop the files that were not written or kept in this run
+            entries.keySet().retainAll(current);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                content.append(value.digest).append(' ').append(value.size).append(' ').append(value.modified);
+                content.append(' ').append(entry.getKey()).append('\n');
+            }
+            log.debug("Written {} files, {} unchanged", written, skipped);
+        }
+        bookDir.toFile().mkdirs();
+        Path temp = Files.createTempFile(bookDir, FILE_NAME, ".tmp");
+        Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, bookDir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    private String getKey(Path path) {
+        Path abspath = path.toAbsolutePath().normalize();
+        if (abspath.startsWith(bookDir)) {
+            return EpubPackager.getEntryName(bookDir.relativize(abspath));
+        }
+        return abspath.toString();
+    }
+
+    static class Entry {
+        final String digest;
+        final long size;
+        final long modified;
+        Entry(String digest, long size, long modified) {
+            this.digest = digest;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
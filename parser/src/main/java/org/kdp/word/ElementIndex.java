@@ -0,0 +1,273 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Parent;
+import org.kdp.word.utils.IllegalArgumentAssertion;
+
+/**
+ * An index of the source document elements by tag name, class, id and name attribute.
+ * 
+ * The index is built while the document is parsed, so that the entries of each key are 
+ * in document order. Transformers that create elements which should be found by later 
+ * lookups register them with {@link #add(Element)}, transformers that change an indexed 
+ * attribute call {@link #update(Element)}. After such a change the entries are sorted 
+ * once, with a single walk over the document, on the next lookup.
+ * 
+ * Lookups only find values that were present when the element was indexed. Elements 
+ * that were removed from the document or whose indexed attribute changed are dropped 
+ * from the index when a lookup comes across them. Results are returned in document order.
+ */
+public final class ElementIndex {
+
+    static final String[] INDEXED_ATTRIBUTES = new String[] { "class", "id", "name" };
+    
+    private final Map<String, List<Element>> byName = new HashMap<>();
+    private final Map<String, Map<String, List<Element>>> byAttribute = new HashMap<>();
+    private boolean sorted = true;
+
+    public ElementIndex() {
+        for (String attname : INDEXED_ATTRIBUTES) {
+            byAttribute.put(attname, new HashMap<String, List<Element>>());
+        }
+    }
+
+    /**
+     * Add the given element and its descendants to the index
+     */
+    public void add(Element element) {
+        IllegalArgumentAssertion.assertNotNull(element, "element");
+        addTree(element);
+        sorted = false;
+    }
+
+    /**
+     * Index the current class, id and name values of the given element
+     */
+    public void update(Element element) {
+        IllegalArgumentAssertion.assertNotNull(element, "element");
+        addAttributes(element);
+        sorted = false;
+    }
+
+    /**
+     * Add the given element to the index. Elements are added in document order 
+     * while the document is parsed.
+     */
+    void addElement(Element element) {
+        addEntry(byName, element.getName(), element);
+        addAttributes(element);
+    }
+
+    private void addTree(Element element) {
+        addElement(element);
+        for (Element ch : element.getChildren()) {
+            addTree(ch);
+        }
+    }
+
+    private void addAttributes(Element element) {
+        for (String attname : INDEXED_ATTRIBUTES) {
+            Attribute att = element.getAttribute(attname);
+            if (att != null) {
+                addEntry(byAttribute.get(attname), att.getValue(), element);
+            }
+        }
+    }
+
+    /**
+     * Get the attached elements with the given tag name
+     */
+    public List<Element> getElements(String name) {
+        return lookup(getEntries(byName, name), name, null, null, false);
+    }
+
+    /**
+     * Get the attached elements with the given class value
+     */
+    public List<Element> getElementsByClass(String classValue) {
+        return lookup(getEntries(byAttribute.get("class"), classValue), null, "class", classValue, false);
+    }
+
+    /**
+     * Find the first attached element with the given tag name
+     */
+    public Element findElement(String name) {
+        return findElement(name, null, null);
+    }
+
+    /**
+     * Find the first attached element with the given tag name and attribute value
+     */
+    public Element findElement(String name, String attname, String attvalue) {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        Map<String, List<Element>> attmap = attname != null && attvalue != null ? byAttribute.get(attname) : null;
+        List<Element> result;
+        if (attmap != null) {
+            result = lookup(getEntries(attmap, attvalue), name, attname, attvalue, true);
+        } else {
+            result = lookup(getEntries(byName, name), name, null, null, true);
+        }
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private List<Element> getEntries(Map<String, List<Element>> map, String key) {
+        if (!sorted) {
+            sort();
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Collect the matching entries and drop the ones that are no longer attached 
+     * or no longer have the indexed value
+     */
+    private List<Element> lookup(List<Element> entries, String name, String attname, String attvalue, boolean first) {
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<Element> result = new ArrayList<>();
+        int keep = 0;
+        int index = 0;
+        while (index < entries.size() && !(first && !result.isEmpty())) {
+            Element el = entries.get(index++);
+            boolean valid = el.getDocument() != null;
+            if (attname != null) {
+                valid = valid && attvalue.equals(el.getAttributeValue(attname));
+            } else {
+                valid = valid && name.equals(el.getName());
+            }
+            if (valid) {
+                entries.set(keep++, el);
+                if (name == null || name.equals(el.getName())) {
+                    result.add(el);
+                }
+            }
+        }
+        entries.subList(keep, index).clear();
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Number the attached elements with a walk over their documents, then sort every 
+     * key in document order and drop the detached and duplicate entries
+     */
+    private void sort() {
+        List<List<Element>> lists = new ArrayList<>(byName.values());
+        for (Map<String, List<Element>> attmap : byAttribute.values()) {
+            lists.addAll(attmap.values());
+        }
+        Attachment attachment = new Attachment();
+        for (List<Element> list : lists) {
+            for (Element el : list) {
+                attachment.isAttached(el);
+            }
+        }
+        final Map<Element, Integer> order = new IdentityHashMap<>();
+        for (Document doc : attachment.documents) {
+            if (doc.hasRootElement()) {
+                number(doc.getRootElement(), order);
+            }
+        }
+        Comparator<Element> comparator = new Comparator<Element>() {
+            @Override
+            public int compare(Element el1, Element el2) {
+                return Integer.compare(order.get(el1), order.get(el2));
+            }
+        };
+        for (List<Element> list : lists) {
+            Set<Element> seen = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+            List<Element> result = new ArrayList<>(list.size());
+            for (Element el : list) {
+                if (order.containsKey(el) && seen.add(el)) {
+                    result.add(el);
+                }
+            }
+            Collections.sort(result, comparator);
+            list.clear();
+            list.addAll(result);
+        }
+        sorted = true;
+    }
+
+    private void number(Element element, Map<Element, Integer> order) {
+        order.put(element, order.size());
+        for (Element ch : element.getChildren()) {
+            number(ch, order);
+        }
+    }
+
+    private static void addEntry(Map<String, List<Element>> map, String key, Element element) {
+        List<Element> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(element);
+    }
+
+    /**
+     * The documents of the indexed elements. 
+     * Ancestors that are known to be attached are not walked again.
+     */
+    private static class Attachment {
+        
+        private final Map<Element, Document> attached = new IdentityHashMap<>();
+        private final Set<Document> documents = new LinkedHashSet<>();
+        
+        boolean isAttached(Element element) {
+            List<Element> path = new ArrayList<>();
+            Document doc = null;
+            Parent parent = element;
+            while (parent instanceof Element) {
+                Element el = (Element) parent;
+                doc = attached.get(el);
+                if (doc != null) {
+                    break;
+                }
+                path.add(el);
+                parent = el.getParent();
+            }
+            if (doc == null && parent instanceof Document) {
+                doc = (Document) parent;
+            }
+            if (doc != null) {
+                for (Element el : path) {
+                    attached.put(el, doc);
+                }
+                documents.add(doc);
+            }
+            return doc != null;
+        }
+    }
+}
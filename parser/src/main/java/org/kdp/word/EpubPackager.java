@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+import org.kdp.word.utils.IllegalStateAssertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the parts of a book into an EPUB file as they are produced.
+ * 
+ * The stored mimetype entry comes first, all other entries are deflated. Every entry 
+ * has the same fixed timestamp, so that the same book gives the same bytes. Deferred 
+ * entries are written on close, for parts that change until the end of the conversion.
+ */
+public final class EpubPackager implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(EpubPackager.class);
+    
+    public static final String MIMETYPE = "application/epub+zip";
+    public static final String CONTAINER = "META-INF/container.xml";
+    
+    // 1980-01-01 00:00 in the local time zone, the earliest DOS time
+    static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+    
+    /**
+     * Writes the content of an entry
+     */
+    public interface EntryWriter {
+        void write(OutputStream out) throws IOException;
+    }
+    
+    private final Path path;
+    private final ZipOutputStream zip;
+    private final Set<String> names = new HashSet<>();
+    private final Map<String, EntryWriter> deferred = new LinkedHashMap<>();
+
+    public EpubPackager(Path path) throws IOException {
+        this.path = path;
+        File parent = path.toAbsolutePath().getParent().toFile();
+        parent.mkdirs();
+        zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())));
+        writeMimetype();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the entry name for a path relative to the book root
+     */
+    public static String getEntryName(Path relative) {
+        IllegalArgumentAssertion.assertFalse(relative.isAbsolute(), "Not a relative path: " + relative);
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    public synchronized boolean hasEntry(String name) {
+        return names.contains(name) || deferred.containsKey(name);
+    }
+
+    public synchronized void addEntry(String name, EntryWriter writer) throws IOException {
+        putEntry(name);
+        writer.write(new FilterOutputStream(zip) {
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                out.write(bytes, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the entry is closed by the packager
+            }
+        });
+        zip.closeEntry();
+    }
+
+    public void addEntry(String name, final byte[] content) throws IOException {
+        addEntry(name, new EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(content);
+            }
+        });
+    }
+
+    public void addFile(String name, final Path file) throws IOException {
+        addEntry(name, new EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                Files.copy(file, out);
+            }
+        });
+    }
+
+    /**
+     * Add an entry that is written when the packager is closed
+     */
+    public synchronized void addDeferredEntry(String name, EntryWriter writer) {
+        IllegalStateAssertion.assertFalse(hasEntry(name), "Duplicate entry: " + name);
+        deferred.put(name, writer);
+    }
+
+    /**
+     * Add the package document and the container that points to it
+     */
+    public void addPackage(String name, EntryWriter writer) throws IOException {
+        addEntry(name, writer);
+        StringBuilder container = new StringBuilder();
+        container.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        container.append("<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n");
+        container.append("  <rootfiles>\n");
+        container.append("    <rootfile full-path=\"").append(name).append("\" media-type=\"application/oebps-package+xml\" />\n");
+        container.append("  </rootfiles>\n");
+        container.append("</container>\n");
+        addEntry(CONTAINER, container.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            List<Map.Entry<String, EntryWriter>> entries = new ArrayList<>(deferred.entrySet());
+            deferred.clear();
+            for (Map.Entry<String, EntryWriter> entry : entries) {
+                addEntry(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            zip.close();
+        }
+        log.info("Written EPUB: {}", path);
+    }
+
+    /**
+     * Close without the deferred entries and delete the incomplete file
+     */
+    public synchronized void abort() {
+        deferred.clear();
+        try {
+            zip.close();
+        } catch (IOException ex) {
+            log.debug("Cannot close EPUB: {}", path, ex);
+        }
+        path.toFile().delete();
+    }
+
+    private void writeMimetype() throws IOException {
+        byte[] bytes = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = new ZipEntry("mimetype");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        entry.setTime(ENTRY_TIME);
+        names.add(entry.getName());
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    private void putEntry(String name) throws IOException {
+        IllegalStateAssertion.assertTrue(names.add(name), "Duplicate entry: " + name);
+        log.debug("Add EPUB entry: {}", name);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setTime(ENTRY_TIME);
+        zip.putNextEntry(entry);
+    }
+}
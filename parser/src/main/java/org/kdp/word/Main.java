@@ -20,6 +20,7 @@
 package org.kdp.word;
 
 import java.io.File;
+import java.util.List;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -42,8 +43,36 @@ public class Main {
             return;
         }
 
+        List<File> inputs = BatchProcessor.collectInputs(options.arguments);
+        boolean batch = inputs.size() != 1 || options.arguments.get(0).isDirectory();
+        if (batch && (options.getOutput() != null || options.getOpfTarget() != null || options.getEpub() != null || options.getMobi() != null)) {
+            System.err.println("--output, --opf, --epub and --mobi cannot be used with multiple inputs");
+            options.helpScreen(cmdParser);
+            return;
+        }
+        
         Parser parser = new ParserBuilder(options).build();
-        File infile = options.arguments.get(0);
-        parser.process(infile);
+        if (options.isWatch()) {
+            new Watcher(parser, inputs, batch).run();
+            return;
+        }
+        if (!batch) {
+            parser.convert(inputs.get(0));
+            return;
+        }
+
+        // Batch mode
+        long start = System.currentTimeMillis();
+        List<BatchProcessor.Result> results = new BatchProcessor(parser).process(inputs);
+        int failed = 0;
+        for (BatchProcessor.Result result : results) {
+            System.out.println(result);
+            failed += result.isSuccess() ? 0 : 1;
+        }
+        long millis = System.currentTimeMillis() - start;
+        System.out.println("Converted " + (results.size() - failed) + " of " + results.size() + " files in " + millis + " ms");
+        if (failed > 0) {
+            System.exit(1);
+        }
     }
 }
@@ -31,6 +31,21 @@ public final class Options {
     @Option(name = "--opf-template", usage = "Path to the OPF template")
     private Path opfTemplate = Paths.get("opf-template.xml");
 
+    @Option(name = "--epub", usage = "Path to an EPUB file that receives the book")
+    private Path epub;
+
+    @Option(name = "--mobi", usage = "Path to a MOBI file that receives the book")
+    private Path mobi;
+
+    @Option(name = "--watch", usage = "Convert again when the input, config, CSS or OPF template change")
+    private boolean watch;
+
+    @Option(name = "--threads", usage = "Number of files converted concurrently")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--port", usage = "Local port of the conversion server")
+    private int port = 8118;
+
     @Argument(hidden = true, handler = FileOptionHandler.class)
     List<File> arguments = new ArrayList<>();
     
@@ -74,8 +89,68 @@ public final class Options {
         this.externalCSS = css;
     }
 
+    public Path getEpub() {
+        return epub;
+    }
+
+    void setEpub(Path epub) {
+        this.epub = epub;
+    }
+
+    public Path getMobi() {
+        return mobi;
+    }
+
+    void setMobi(Path mobi) {
+        this.mobi = mobi;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Get a copy of these options that writes to the given book dir
+     */
+    Options withBookDir(Path bookdir) {
+        Options result = new Options();
+        result.help = help;
+        result.bookdir = bookdir.toAbsolutePath();
+        result.output = output;
+        result.opfTarget = opfTarget;
+        result.externalCSS = externalCSS;
+        result.opfTemplate = opfTemplate;
+        result.epub = epub;
+        result.mobi = mobi;
+        result.watch = watch;
+        result.threads = threads;
+        result.port = port;
+        result.arguments = arguments;
+        return result;
+    }
+
     void helpScreen(CmdLineParser cmdParser) {
-        System.err.println("java -jar word2mobi.jar [options...] MyInput.html");
+        System.err.println("java -jar word2mobi.jar [options...] MyInput.html [MoreInput.html|InputDir...]");
         cmdParser.printUsage(System.err);
     }
 }
\ No newline at end of file
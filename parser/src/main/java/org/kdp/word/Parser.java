@@ -19,35 +19,40 @@
  */
 package org.kdp.word;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.ccil.cowan.tagsoup.jaxp.SAXParserImpl;
 import org.jdom2.Attribute;
-import org.jdom2.DefaultJDOMFactory;
+import org.jdom2.Content;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
 import org.kdp.word.Transformer.Context;
+import org.kdp.word.transformer.ImageTransformer.Images;
 import org.kdp.word.utils.IOUtils;
+import org.kdp.word.utils.InterningJDOMFactory;
 import org.kdp.word.utils.IllegalArgumentAssertion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,7 +70,15 @@ public final class Parser {
     
     public static final String PROPERTY_ATTRIBUTE_REPLACE = "attribute.replace";
     public static final String PROPERTY_ESCAPED_CHARS = "escaped.chars";
+    public static final String PROPERTY_FOOTNOTE_ENDNOTES = "footnote.endnotes";
+    public static final String PROPERTY_IMAGE_CACHE_DIR = "image.cache.dir";
+    public static final String PROPERTY_IMAGE_JPEG_QUALITY = "image.jpeg.quality";
+    public static final String PROPERTY_IMAGE_MAX_BYTES = "image.max.bytes";
+    public static final String PROPERTY_IMAGE_MAX_HEIGHT = "image.max.height";
+    public static final String PROPERTY_IMAGE_MAX_WIDTH = "image.max.width";
+    public static final String PROPERTY_IMAGE_PARALLELISM = "image.parallelism";
     public static final String PROPERTY_INPUT_CHARSET = "input.charset";
+    public static final String PROPERTY_INPUT_COMPACT_WHITESPACE = "input.compact.whitespace";
     public static final String PROPERTY_OPF_MANIFEST_COVER_IMAGE = "opf.manifest.cover.image";
     public static final String PROPERTY_OPF_MANIFEST_COVER_IMAGE_TYPE = "opf.manifest.cover.image.type";
     public static final String PROPERTY_OPF_METADATA_AUTHOR = "opf.metadata.author";
@@ -73,16 +86,24 @@ public final class Parser {
     public static final String PROPERTY_OPF_METADATA_TITLE = "opf.metadata.title";
     public static final String PROPERTY_OUTPUT_ENCODING = "output.encoding";
     public static final String PROPERTY_OUTPUT_FORMAT = "output.format";
+    public static final String PROPERTY_SECTION_PARALLELISM = "section.parallelism";
     public static final String PROPERTY_STYLE_REPLACE = "style.replace";
     public static final String PROPERTY_STYLE_REPLACE_WHITELIST = "style.replace.whitelist";
     public static final String PROPERTY_TRANSFORMER = "transformer";
+    public static final String PROPERTY_TRAVERSAL_FUSED = "traversal.fused";
     
     public static final String OUTPUT_FORMAT_COMPACT = "compact";
     public static final String OUTPUT_FORMAT_PRETTY = "pretty";
+    
+    public static final Set<String> BLOCK_ELEMENTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("address", "article", "aside", "blockquote", 
+            "body", "dd", "div", "dl", "dt", "footer", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header", "hr", 
+            "html", "li", "link", "meta", "nav", "ol", "p", "section", "style", "table", "tbody", "td", "tfoot", 
+            "th", "thead", "title", "tr", "ul")));
 
     private final List<Transformer> transformers = new ArrayList<>();
     private final Properties properties = new Properties();
     private final Options options;
+    private Map<String, Object> compiled = new ConcurrentHashMap<>();
     
     Parser(Options options) {
         this.options = options;
@@ -111,6 +132,10 @@ public final class Parser {
         properties.setProperty(name, value);
     }
 
+    Options getOptions() {
+        return options;
+    }
+
     public String getProperty(String key) {
         return properties.getProperty(key);
     }
@@ -119,34 +144,197 @@ public final class Parser {
         return getPropertyKeys(properties);
     }
 
+    /**
+     * Get a value that was compiled from the parser properties
+     */
+    public <T> T getCompiled(Class<T> type) {
+        return type.cast(compiled.get(type.getName()));
+    }
+
+    /**
+     * Put a value compiled from the parser properties. It is shared by all documents 
+     * processed with the same properties. Returns the value that was put first.
+     */
+    public <T> T putCompiled(Class<T> type, T value) {
+        Object result = compiled.putIfAbsent(type.getName(), value);
+        return result != null ? type.cast(result) : value;
+    }
+
     private Set<String> getPropertyKeys(Properties props) {
         List<String> names = new ArrayList<>();
         for (Object name : props.keySet()) {
             names.add((String) name);
         }
-        Collections.sort(names);
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                // Numeric parts sort by value, so that transformer.10 follows transformer.9
+                String[] toks1 = key1.split("\\.");
+                String[] toks2 = key2.split("\\.");
+                for (int i = 0; i < Math.min(toks1.length, toks2.length); i++) {
+                    boolean num1 = isNumber(toks1[i]);
+                    boolean num2 = isNumber(toks2[i]);
+                    int result;
+                    if (num1 && num2) {
+                        result = Long.compare(Long.parseLong(toks1[i]), Long.parseLong(toks2[i]));
+                    } else if (num1 || num2) {
+                        result = num1 ? -1 : 1;
+                    } else {
+                        result = toks1[i].compareTo(toks2[i]);
+                    }
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return toks1.length != toks2.length ? Integer.compare(toks1.length, toks2.length) : key1.compareTo(key2);
+            }
+            private boolean isNumber(String tok) {
+                return !tok.isEmpty() && tok.length() < 19 && tok.matches("\\d+");
+            }
+        });
         return Collections.unmodifiableSet(new LinkedHashSet<String>(names));
     }
 
+    /**
+     * Process the input file and return the output document as string.
+     * 
+     * The output is read back from the written file. 
+     * Use {@link #convert(File)} when the string is not needed.
+     */
     public String process(File infile) throws SAXException, IOException {
+        IllegalArgumentAssertion.assertNotNull(infile, "infile");
+        Parser parser = configure(infile, options);
+        Path outpath = parser.processInternal(infile);
+        byte[] bytes;
+        Path epub = parser.options.getEpub();
+        if (epub != null) {
+            String name = EpubPackager.getEntryName(parser.options.getBookDir().relativize(outpath));
+            bytes = IOUtils.readEntry(epub, name);
+        } else {
+            bytes = Files.readAllBytes(outpath);
+        }
+        return new String(bytes, parser.getOutputEncoding());
+    }
 
+    /**
+     * Process the input file and return the path to the output document, 
+     * or to the EPUB file when the book is packaged.
+     */
+    public Path convert(File infile) throws SAXException, IOException {
+        return convert(infile, options);
+    }
+
+    /**
+     * Process the input file with the given options. 
+     * 
+     * The parser itself is not modified, so that a single instance can 
+     * process any number of files, also concurrently.
+     */
+    Path convert(File infile, Options options) throws SAXException, IOException {
         IllegalArgumentAssertion.assertNotNull(infile, "infile");
+        IllegalArgumentAssertion.assertNotNull(options, "options");
+        Parser parser = configure(infile, options);
+        Path outpath = parser.processInternal(infile);
+        return options.getEpub() != null ? options.getEpub() : outpath;
+    }
+
+    /**
+     * Get a parser for the given options that includes the configuration from the 
+     * input base dir. Returns this parser if there is nothing to add.
+     */
+    private Parser configure(File infile, Options options) {
+        Path basedir = Paths.get(infile.toURI()).getParent();
+        File configFile = basedir.resolve(CONFIGURATION_PROPERTIES).toFile();
+        log.debug("Search configuration: {}", configFile);
+        if (options == this.options && !configFile.isFile()) {
+            return this;
+        }
+        Parser result = new Parser(options);
+        result.transformers.addAll(transformers);
+        result.properties.putAll(properties);
+        if (configFile.isFile()) {
+            result.initDefaults(configFile);
+        } else {
+            result.compiled = compiled;
+        }
+        return result;
+    }
+
+    private Path processInternal(File infile) throws SAXException, IOException {
+
         log.info("Process: {}", infile);
         
         final Path source = Paths.get(infile.toURI());
-        final Path basedir = source.getParent();
-        initDefaults(basedir);
 
         log.debug("Using properties:");
         for (String key : getPropertyKeys()) {
             log.debug(" " + key + " = " + getProperty(key));
         }
         
-        // Parse input file to Document
-        final JDOMFactory factory = new DefaultJDOMFactory();
-        final Document doc = parseHTML(factory, infile);
+        // Parse input file to Document, sharing names and repeated values per document
+        final JDOMFactory factory = new InterningJDOMFactory();
+        final ElementIndex index = new ElementIndex();
+        final AtomicReference<Document> docref = new AtomicReference<>(parseHTML(factory, index, infile));
 
-        Context context = new Context() {
+        Context context = createContext(source, factory, index, docref);
+        
+        // Stream the book parts into the EPUB file
+        final EpubPackager packager = options.getEpub() != null ? new EpubPackager(options.getEpub()) : null;
+        if (packager != null) {
+            context.putAttribute(EpubPackager.class, packager);
+        }
+        
+        // Only write the files in the book dir that have changed
+        BuildManifest manifest = BuildManifest.load(options.getBookDir());
+        context.putAttribute(BuildManifest.class, manifest);
+        boolean success = false;
+        try {
+            // Transform the Document
+            transformDocument(context);
+    
+            // Write output file 
+            Path outpath = options.getBookDir().resolve(context.getTarget());
+            writeOutput(context, packager, docref.get(), outpath);
+            
+            // Wait for the images, so that they are complete and recorded in the manifest
+            Images images = context.getAttribute(Images.class);
+            if (images != null) {
+                images.await();
+            }
+            manifest.close();
+            success = true;
+            return outpath;
+        } finally {
+            if (packager != null && success) {
+                packager.close();
+            } else if (packager != null) {
+                packager.abort();
+            }
+        }
+    }
+
+    /**
+     * Parse the input into a context for running the transformers separately.
+     * Nothing is written, tools and benchmarks use this to measure single stages.
+     */
+    public Context createContext(File infile) throws SAXException, IOException {
+        JDOMFactory factory = new InterningJDOMFactory();
+        ElementIndex index = new ElementIndex();
+        AtomicReference<Document> docref = new AtomicReference<>(parseHTML(factory, index, infile));
+        Context context = createContext(Paths.get(infile.toURI()), factory, index, docref);
+        context.putAttribute(BuildManifest.class, BuildManifest.load(options.getBookDir()));
+        return context;
+    }
+
+    /**
+     * Get the configured transformers in order
+     */
+    public List<Transformer> getTransformers() {
+        return Collections.unmodifiableList(transformers);
+    }
+
+    private Context createContext(final Path source, final JDOMFactory factory, final ElementIndex index, final AtomicReference<Document> docref) {
+        return new Context() {
             
             private Map<String, Object> attributes = new HashMap<>();
             
@@ -167,7 +355,7 @@ public final class Parser {
 
             @Override
             public Path getBasedir() {
-                return basedir;
+                return source.getParent();
             }
 
             @Override
@@ -188,7 +376,13 @@ public final class Parser {
 
             @Override
             public Element getSourceRoot() {
-                return doc.getRootElement();
+                Document doc = docref.get();
+                return doc != null ? doc.getRootElement() : null;
+            }
+
+            @Override
+            public ElementIndex getElementIndex() {
+                return index;
             }
 
             @Override
@@ -207,56 +401,90 @@ public final class Parser {
                 return attributes;
             }
         };
-        
-        // Transform the Document
-        for (Transformer tr : transformers) {
-            log.debug("Transforming with: {}", tr);
-            tr.transform(context);
+    }
+
+    private void writeOutput(final Context context, EpubPackager packager, final Document doc, Path outpath) throws IOException {
+        if (packager != null) {
+            String name = EpubPackager.getEntryName(IOUtils.bookRelative(context, outpath));
+            packager.addEntry(name, new EpubPackager.EntryWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    IOUtils.writeDocument(context, doc, out);
+                }
+            });
+        } else {
+            log.debug("Writing output to: {}", outpath);
+            context.getAttribute(BuildManifest.class).write(outpath, new EpubPackager.EntryWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    IOUtils.writeDocument(context, doc, out);
+                }
+            });
         }
+    }
 
-        // Get the result
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        IOUtils.writeDocument(context, doc, baos);
-        String result = new String(baos.toByteArray());
-        
-        // Write output file 
-        File outfile = options.getBookDir().resolve(context.getTarget()).toFile();
-        outfile.getParentFile().mkdirs();
-        log.debug("Writing output to: {}", outfile);
-        FileOutputStream fos = new FileOutputStream(outfile);
-        IOUtils.writeDocument(context, doc, fos);
-        fos.close();
-        
-        return result;
+    private String getOutputEncoding() {
+        String encoding = getProperty(PROPERTY_OUTPUT_ENCODING);
+        return encoding != null ? encoding : "UTF-8";
     }
 
     /**
-     * Parse the input file and return a well formed document
+     * Run the transformer chain. Consecutive visiting transformers share a single 
+     * traversal of the document, followed by their post-pass in configured order.
+     * With traversal.fused=false each visiting transformer walks the document on its own.
      */
-    private Document parseHTML(final JDOMFactory factory, final File infile) throws SAXException, IOException {
-
-        final AtomicReference<Document> docref = new AtomicReference<>();
+    private void transformDocument(Context context) {
+        boolean fusion = isFusedTraversal();
+        List<VisitingTransformer> fused = new ArrayList<>();
+        for (Transformer tr : transformers) {
+            if (tr instanceof VisitingTransformer) {
+                fused.add((VisitingTransformer) tr);
+                if (!fusion) {
+                    transformFused(context, fused);
+                }
+            } else {
+                transformFused(context, fused);
+                log.debug("Transforming with: {}", tr);
+                tr.transform(context);
+            }
+        }
+        transformFused(context, fused);
+    }
 
-        String charset = getProperty(PROPERTY_INPUT_CHARSET);
-        charset = charset != null ? charset : "UTF-8";
-        
-        InputStream inputStream = new FileInputStream(infile);
-        Reader reader = new InputStreamReader(inputStream, charset);
-        InputSource source = new InputSource(reader);
-        source.setEncoding(charset);
+    private void transformFused(Context context, List<VisitingTransformer> fused) {
+        if (!fused.isEmpty()) {
+            Traversal traversal = new Traversal();
+            for (VisitingTransformer tr : fused) {
+                tr.registerVisitors(context, traversal);
+            }
+            log.debug("Traversing with: {}", fused);
+            traversal.walk(context, context.getSourceRoot());
+            for (VisitingTransformer tr : fused) {
+                log.debug("Transforming with: {}", tr);
+                tr.transform(context);
+            }
+            fused.clear();
+        }
+    }
 
-        SAXParserImpl.newInstance(null).parse(source, new DefaultHandler() {
+    /**
+     * Parse the input file and return a well formed document.
+     * Elements are added to the given index as they are created.
+     */
+    private Document parseHTML(final JDOMFactory factory, final ElementIndex index, final File infile) throws SAXException, IOException {
+        final AtomicReference<Document> docref = new AtomicReference<>();
+        parse(infile, new HTMLHandler(isCompactWhitespace()) {
 
             Stack<Element> stack = new Stack<>();
 
-            public void startElement(String uri, String localName, String name, Attributes inatts) {
-                Element element = factory.element(localName.toLowerCase());
+            @Override
+            void openElement(String elname, Attributes inatts) {
+                Element element = factory.element(elname);
                 List<Attribute> outatts = element.getAttributes();
                 for (int i = 0; i < inatts.getLength(); i++) {
-                    String att = inatts.getLocalName(i);
-                    String val = inatts.getValue(i);
-                    outatts.add(factory.attribute(att, val));
+                    outatts.add(factory.attribute(inatts.getLocalName(i), inatts.getValue(i)));
                 }
+                index.addElement(element);
                 if (docref.get() == null) {
                     docref.set(factory.document(element));
                 } else {
@@ -266,26 +494,59 @@ public final class Parser {
                 stack.push(element);
             }
 
-            public void endElement(String uri, String localName, String name) {
+            @Override
+            void closeElement() {
                 stack.pop();
             }
 
-            public void characters(char[] arr, int start, int length) {
-                StringBuilder sb = new StringBuilder(length);
-                for (int i = 0; i < length; i++) {
-                    char ch = arr[start + i];
-                    sb.append(ch);
-                }
+            @Override
+            void addText(String text) {
+                stack.peek().addContent(factory.text(text));
+            }
+
+            @Override
+            String getCurrentName() {
+                return stack.peek().getName();
+            }
+
+            @Override
+            boolean isBlockBefore() {
                 Element parent = stack.peek();
-                parent.addContent(sb.toString());
+                int size = parent.getContentSize();
+                if (size == 0) {
+                    return BLOCK_ELEMENTS.contains(parent.getName());
+                }
+                Content last = parent.getContent(size - 1);
+                return last instanceof Element && BLOCK_ELEMENTS.contains(((Element) last).getName());
             }
         });
         return docref.get();
     }
 
-    private void initDefaults(Path basedir) {
-        File configFile = basedir.resolve(CONFIGURATION_PROPERTIES).toFile();
-        log.debug("Search configuration: {}", configFile);
+    private boolean isCompactWhitespace() {
+        return Boolean.parseBoolean(getProperty(PROPERTY_INPUT_COMPACT_WHITESPACE));
+    }
+
+    private boolean isFusedTraversal() {
+        return !"false".equalsIgnoreCase(getProperty(PROPERTY_TRAVERSAL_FUSED));
+    }
+
+    /**
+     * Parse the input with the charset from its BOM or meta header, falling back to input.charset
+     */
+    private void parse(File infile, HTMLHandler handler) throws SAXException, IOException {
+        String charset = getProperty(PROPERTY_INPUT_CHARSET);
+        charset = charset != null ? charset : "UTF-8";
+        
+        Reader reader = IOUtils.openInput(infile.toPath(), charset);
+        try {
+            SAXParserImpl.newInstance(null).parse(new InputSource(reader), handler);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void initDefaults(File configFile) {
         if (configFile.isFile()) {
             log.debug("Load configuration from: {}", configFile);
             Properties properties = new Properties();
@@ -299,4 +560,80 @@ public final class Parser {
             init(properties);
         }
     }
+
+    /**
+     * Receives the parser events for a document model. Characters are coalesced 
+     * into a single text node per run and tag names are lower case.
+     */
+    private abstract static class HTMLHandler extends DefaultHandler {
+
+        private final boolean compact;
+        private final StringBuilder text = new StringBuilder();
+        private final Map<String, String> elnames = new HashMap<>();
+
+        HTMLHandler(boolean compact) {
+            this.compact = compact;
+        }
+
+        abstract void openElement(String elname, Attributes atts);
+
+        abstract void closeElement();
+
+        abstract void addText(String text);
+
+        /**
+         * Get the name of the current element
+         */
+        abstract String getCurrentName();
+
+        /**
+         * True if the current element is a block without content, or its last child is a block
+         */
+        abstract boolean isBlockBefore();
+
+        @Override
+        public void startElement(String uri, String localName, String name, Attributes atts) {
+            String elname = elnames.get(localName);
+            if (elname == null) {
+                elname = localName.toLowerCase();
+                elnames.put(localName, elname);
+            }
+            flushText(BLOCK_ELEMENTS.contains(elname));
+            openElement(elname, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String name) {
+            flushText(BLOCK_ELEMENTS.contains(getCurrentName()));
+            closeElement();
+        }
+
+        @Override
+        public void characters(char[] arr, int start, int length) {
+            text.append(arr, start, length);
+        }
+
+        /**
+         * Add the pending characters as a single text node. With compaction, whitespace 
+         * only runs that have a block boundary on both sides are dropped.
+         */
+        private void flushText(boolean blockAfter) {
+            if (text.length() == 0) {
+                return;
+            }
+            if (!compact || !blockAfter || !isWhitespace(text) || !isBlockBefore()) {
+                addText(text.toString());
+            }
+            text.setLength(0);
+        }
+
+        private boolean isWhitespace(CharSequence chars) {
+            for (int i = 0; i < chars.length(); i++) {
+                if (!Character.isWhitespace(chars.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
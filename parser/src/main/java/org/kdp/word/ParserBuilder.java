@@ -84,6 +84,37 @@ public class ParserBuilder {
         return this;
     }
     
+    public ParserBuilder compactWhitespace(boolean compact) {
+        properties.setProperty(Parser.PROPERTY_INPUT_COMPACT_WHITESPACE, String.valueOf(compact));
+        return this;
+    }
+    
+    public ParserBuilder fusedTraversal(boolean fused) {
+        properties.setProperty(Parser.PROPERTY_TRAVERSAL_FUSED, String.valueOf(fused));
+        return this;
+    }
+    
+    public ParserBuilder sectionParallelism(int parallelism) {
+        properties.setProperty(Parser.PROPERTY_SECTION_PARALLELISM, String.valueOf(parallelism));
+        return this;
+    }
+    
+    public ParserBuilder imageLimits(int maxWidth, int maxHeight) {
+        properties.setProperty(Parser.PROPERTY_IMAGE_MAX_WIDTH, String.valueOf(maxWidth));
+        properties.setProperty(Parser.PROPERTY_IMAGE_MAX_HEIGHT, String.valueOf(maxHeight));
+        return this;
+    }
+    
+    public ParserBuilder imageCache(String cachedir) {
+        properties.setProperty(Parser.PROPERTY_IMAGE_CACHE_DIR, cachedir);
+        return this;
+    }
+    
+    public ParserBuilder endnotes(String endnotes) {
+        properties.setProperty(Parser.PROPERTY_FOOTNOTE_ENDNOTES, endnotes);
+        return this;
+    }
+    
     public ParserBuilder bookdir(String bookdir) {
         options.setBookDir(Paths.get(bookdir));
         return this;
@@ -104,6 +135,26 @@ public class ParserBuilder {
         return this;
     }
     
+    public ParserBuilder epub(String epub) {
+        options.setEpub(Paths.get(epub));
+        return this;
+    }
+    
+    public ParserBuilder mobi(String mobi) {
+        options.setMobi(Paths.get(mobi));
+        return this;
+    }
+    
+    public ParserBuilder threads(int threads) {
+        options.setThreads(threads);
+        return this;
+    }
+    
+    public ParserBuilder port(int port) {
+        options.setPort(port);
+        return this;
+    }
+    
     public ParserBuilder css(String css) {
         options.setExternalCSS(Paths.get(css));
         return this;
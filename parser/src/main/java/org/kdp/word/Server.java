@@ -0,0 +1,381 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A conversion daemon that keeps a configured parser in a warm JVM.
+ * 
+ * POST the Word HTML to http://localhost:port/convert?name=MyBook.html and receive the 
+ * book directory as a zip. Other query parameters override word2mobi.properties entries.
+ * 
+ * To include the images and other files that the document references, POST a zip with 
+ * Content-Type application/zip. The name parameter selects the document in the zip.
+ * 
+ * Each job runs in its own work dir. A relative OPF template is resolved against the work dir, 
+ * then against the config dir of the server. The output, OPF, EPUB and MOBI files of a job 
+ * are written into its own book dir.
+ */
+public class Server {
+
+    private static Logger log = LoggerFactory.getLogger(Server.class);
+    
+    public static final String CONTEXT_PATH = "/convert";
+    
+    private final Parser parser;
+    private final Options options;
+    private final Path opfTemplate;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    public Server(Parser parser) {
+        this.parser = parser;
+        this.options = parser.getOptions();
+        this.opfTemplate = resolveConfigPath(options.getOpfTemplate());
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+        CmdLineParser cmdParser = new CmdLineParser(options);
+        try {
+            cmdParser.parseArgument(args);
+        } catch (CmdLineException e) {
+            options.helpScreen(cmdParser);
+            return;
+        }
+
+        if (options.help) {
+            options.helpScreen(cmdParser);
+            return;
+        }
+
+        Parser parser = new ParserBuilder(options).build();
+        Server server = new Server(parser);
+        server.start();
+        System.out.println("Word2Mobi server listening on: " + server.getAddress());
+    }
+
+    public synchronized void start() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), options.getPort());
+        httpServer = HttpServer.create(address, 0);
+        httpServer.createContext(CONTEXT_PATH, new ConvertHandler());
+        executor = Executors.newFixedThreadPool(Math.max(1, options.getThreads()));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        log.info("Server started: {}", getAddress());
+    }
+
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            executor.shutdownNow();
+            httpServer = null;
+        }
+    }
+
+    public synchronized InetSocketAddress getAddress() {
+        return httpServer != null ? httpServer.getAddress() : null;
+    }
+
+    /**
+     * Get the options for a job in the given work dir
+     */
+    Options getJobOptions(Path workdir) {
+        Path bookdir = workdir.resolve("book");
+        Options result = options.withBookDir(bookdir);
+        Path template = options.getOpfTemplate();
+        if (template.isAbsolute() || !workdir.resolve(template).toFile().isFile()) {
+            result.setOpfTemplate(opfTemplate);
+        }
+        if (options.getOutput() != null) {
+            result.setOutput(relocate(options.getOutput(), bookdir));
+        }
+        if (options.getOpfTarget() != null) {
+            result.setOpfTarget(relocate(options.getOpfTarget(), bookdir));
+        }
+        if (options.getEpub() != null) {
+            result.setEpub(bookdir.resolve(options.getEpub().getFileName()));
+        }
+        if (options.getMobi() != null) {
+            result.setMobi(bookdir.resolve(options.getMobi().getFileName()));
+        }
+        return result;
+    }
+
+    /**
+     * Move a path of the server options into the book dir of a job
+     */
+    private Path relocate(Path path, Path bookdir) {
+        Path relative = path;
+        if (path.isAbsolute()) {
+            Path serverdir = options.getBookDir();
+            relative = serverdir != null && path.startsWith(serverdir) ? serverdir.relativize(path) : path.getFileName();
+        }
+        return bookdir.resolve(relative);
+    }
+
+    /**
+     * Resolve a relative path against the directory of the configuration file, 
+     * if it exists there, otherwise against the working directory
+     */
+    static Path resolveConfigPath(Path path) {
+        if (path.isAbsolute()) {
+            return path;
+        }
+        String configLocation = System.getProperty(Parser.SYSTEM_PROPERTY_CONFIGURATION);
+        if (configLocation != null) {
+            try {
+                URI uri = new URI(configLocation);
+                if ("file".equals(uri.getScheme())) {
+                    Path result = Paths.get(uri).getParent().resolve(path);
+                    if (result.toFile().isFile()) {
+                        return result;
+                    }
+                }
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                log.warn("Cannot resolve config dir: {}", configLocation);
+            }
+        }
+        return path.toAbsolutePath();
+    }
+
+    class ConvertHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    sendError(exchange, 405, "POST the Word HTML to " + CONTEXT_PATH);
+                    return;
+                }
+                Path workdir = Files.createTempDirectory("word2mobi");
+                try {
+                    convert(exchange, workdir);
+                } catch (Exception ex) {
+                    log.error("Cannot convert", ex);
+                    sendError(exchange, 500, ex.toString());
+                } finally {
+                    deleteRecursively(workdir);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void convert(HttpExchange exchange, Path workdir) throws Exception {
+            
+            // Store the upload and config overrides in the work dir
+            Properties overrides = new Properties();
+            String name = "input.html";
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int index = pair.indexOf('=');
+                    String key = decode(index > 0 ? pair.substring(0, index) : pair);
+                    String value = decode(index > 0 ? pair.substring(index + 1) : "");
+                    if (key.equals("name")) {
+                        name = Paths.get(value).getFileName().toString();
+                    } else {
+                        overrides.setProperty(key, value);
+                    }
+                }
+            }
+            File infile = workdir.resolve(name).toFile();
+            InputStream input = exchange.getRequestBody();
+            try {
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                if (contentType != null && contentType.startsWith("application/zip")) {
+                    unzip(input, workdir);
+                    IllegalArgumentAssertion.assertTrue(infile.isFile(), "Cannot find document in zip: " + name);
+                } else {
+                    Files.copy(input, infile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                input.close();
+            }
+            Path configPath = workdir.resolve(Parser.CONFIGURATION_PROPERTIES);
+            if (!overrides.isEmpty() || configPath.toFile().isFile()) {
+                Properties config = new Properties();
+                if (configPath.toFile().isFile()) {
+                    InputStream configInput = Files.newInputStream(configPath);
+                    try {
+                        config.load(configInput);
+                    } finally {
+                        configInput.close();
+                    }
+                }
+                config.putAll(overrides);
+                checkJobConfig(config, workdir);
+                OutputStream output = Files.newOutputStream(configPath);
+                try {
+                    config.store(output, null);
+                } finally {
+                    output.close();
+                }
+            }
+            
+            // Convert and send the book dir
+            Options jobOptions = getJobOptions(workdir);
+            parser.convert(infile, jobOptions);
+            Path bookdir = jobOptions.getBookDir();
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.sendResponseHeaders(200, 0);
+            ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody());
+            try {
+                zipDirectory(bookdir, zip);
+            } finally {
+                zip.close();
+            }
+        }
+
+        private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+            byte[] bytes = message.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(bytes);
+            output.close();
+        }
+
+        private String decode(String value) throws UnsupportedEncodingException {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+    }
+
+    /**
+     * The uploaded config cannot add transformers and its paths must stay in the work dir. 
+     * A relative image cache dir is made absolute in the work dir.
+     */
+    static void checkJobConfig(Properties config, Path workdir) {
+        Path root = workdir.toAbsolutePath().normalize();
+        Path bookdir = root.resolve("book");
+        for (String key : config.stringPropertyNames()) {
+            IllegalArgumentAssertion.assertFalse(key.startsWith(Parser.PROPERTY_TRANSFORMER), "Job config cannot set: " + key);
+        }
+        String value = config.getProperty(Parser.PROPERTY_FOOTNOTE_ENDNOTES);
+        if (value != null) {
+            assertInside(root, bookdir.resolve(value.trim()), Parser.PROPERTY_FOOTNOTE_ENDNOTES);
+        }
+        value = config.getProperty(Parser.PROPERTY_OPF_MANIFEST_COVER_IMAGE);
+        if (value != null) {
+            assertInside(root, bookdir.resolve(value.trim()), Parser.PROPERTY_OPF_MANIFEST_COVER_IMAGE);
+            assertInside(root, root.resolve(value.trim()), Parser.PROPERTY_OPF_MANIFEST_COVER_IMAGE);
+        }
+        value = config.getProperty(Parser.PROPERTY_IMAGE_CACHE_DIR);
+        if (value != null && !value.trim().isEmpty()) {
+            Path path = root.resolve(value.trim()).normalize();
+            assertInside(root, path, Parser.PROPERTY_IMAGE_CACHE_DIR);
+            config.setProperty(Parser.PROPERTY_IMAGE_CACHE_DIR, path.toString());
+        }
+    }
+
+    private static void assertInside(Path root, Path path, String key) {
+        IllegalArgumentAssertion.assertTrue(path.normalize().startsWith(root), "Job config path outside work dir: " + key);
+    }
+
+    static void unzip(InputStream input, Path dir) throws IOException {
+        Path root = dir.toAbsolutePath().normalize();
+        ZipInputStream zip = new ZipInputStream(input);
+        ZipEntry entry = zip.getNextEntry();
+        while (entry != null) {
+            Path path = root.resolve(entry.getName()).normalize();
+            IllegalArgumentAssertion.assertTrue(path.startsWith(root) && !path.equals(root), "Invalid zip entry: " + entry.getName());
+            if (entry.isDirectory()) {
+                Files.createDirectories(path);
+            } else {
+                Files.createDirectories(path.getParent());
+                Files.copy(zip, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            entry = zip.getNextEntry();
+        }
+    }
+
+    static void zipDirectory(final Path dir, final ZipOutputStream zip) throws IOException {
+        if (!dir.toFile().isDirectory()) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().equals(BuildManifest.FILE_NAME)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String entryName = dir.relativize(file).toString().replace(File.separatorChar, '/');
+                zip.putNextEntry(new ZipEntry(entryName));
+                Files.copy(file, zip);
+                zip.closeEntry();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static void deleteRecursively(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Cannot delete: " + dir, ex);
+        }
+    }
+}
@@ -66,6 +66,11 @@ public interface Transformer {
          */
         Element getSourceRoot();
         
+        /**
+         * Get the index of source document elements
+         */
+        ElementIndex getElementIndex();
+        
         /**
          * Get a context attribute
          */
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.kdp.word.Transformer.Context;
+import org.kdp.word.utils.IllegalArgumentAssertion;
+
+/**
+ * A single depth-first walk over the source document that dispatches 
+ * each element to the visitors registered for its tag name and class.
+ * 
+ * Visitors are called in registration order. They may modify the attributes 
+ * of the visited element, but must not add or remove nodes. Structural changes 
+ * belong in the post-pass of the owning {@link VisitingTransformer}.
+ */
+public final class Traversal {
+
+    private final List<Registration> registrations = new ArrayList<>();
+    private final Map<String, Registration[]> byName = new HashMap<>();
+
+    /**
+     * Visit every element
+     */
+    public void addVisitor(Visitor visitor) {
+        addVisitor(null, null, visitor);
+    }
+
+    /**
+     * Visit elements with the given name
+     */
+    public void addVisitor(String name, Visitor visitor) {
+        addVisitor(name, null, visitor);
+    }
+
+    /**
+     * Visit elements with the given name and class value. 
+     * A null name or class value matches any.
+     */
+    public void addVisitor(String name, String classValue, Visitor visitor) {
+        IllegalArgumentAssertion.assertNotNull(visitor, "visitor");
+        registrations.add(new Registration(name, classValue, visitor));
+        byName.clear();
+    }
+
+    public boolean isEmpty() {
+        return registrations.isEmpty();
+    }
+
+    /**
+     * Walk the given element and all its descendants
+     */
+    public void walk(Context context, Element element) {
+        if (!registrations.isEmpty()) {
+            walkInternal(context, element);
+        }
+    }
+
+    private void walkInternal(Context context, Element element) {
+        for (Registration reg : getRegistrations(element.getName())) {
+            if (reg.classValue == null || reg.classValue.equals(getClassValue(element))) {
+                reg.visitor.visit(context, element);
+            }
+        }
+        for (Element ch : element.getChildren()) {
+            walkInternal(context, ch);
+        }
+    }
+
+    private Registration[] getRegistrations(String name) {
+        Registration[] result = byName.get(name);
+        if (result == null) {
+            List<Registration> list = new ArrayList<>();
+            for (Registration reg : registrations) {
+                if (reg.name == null || reg.name.equals(name)) {
+                    list.add(reg);
+                }
+            }
+            result = list.toArray(new Registration[list.size()]);
+            byName.put(name, result);
+        }
+        return result;
+    }
+
+    private static String getClassValue(Element element) {
+        Attribute att = element.getAttribute("class");
+        return att != null ? att.getValue() : null;
+    }
+
+    /**
+     * A callback for an element in the traversal
+     */
+    public interface Visitor {
+        
+        void visit(Context context, Element element);
+    }
+
+    static class Registration {
+        final String name;
+        final String classValue;
+        final Visitor visitor;
+        Registration(String name, String classValue, Visitor visitor) {
+            this.name = name;
+            this.classValue = classValue;
+            this.visitor = visitor;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+/**
+ * A transformer that collects its input during the shared {@link Traversal}.
+ * 
+ * The parser fuses consecutive visiting transformers into a single walk over the 
+ * source document. After the walk, {@link #transform(Context)} is called on each 
+ * of them in configured order as the post-pass that applies structural changes.
+ */
+public interface VisitingTransformer extends Transformer {
+
+    /**
+     * Register element visitors with the shared traversal
+     */
+    void registerVisitors(Context context, Traversal traversal);
+}
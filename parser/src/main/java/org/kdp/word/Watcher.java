@@ -0,0 +1,204 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the inputs again when they or the files they depend on change.
+ * 
+ * Watched are the inputs, the word2mobi.properties next to them and the one given with 
+ * the configuration system property, the external CSS and the OPF template. A burst of 
+ * events is collected until the files have been quiet for a moment. The conversions 
+ * run in the same JVM, so that every run after the first one starts warm.
+ */
+public final class Watcher {
+
+    private static Logger log = LoggerFactory.getLogger(Watcher.class);
+    
+    static final long DEFAULT_QUIET_MILLIS = 300;
+    
+    private final Options options;
+    private final List<File> inputs;
+    private final boolean batch;
+    private final long quietMillis;
+    private Parser parser;
+    
+    public Watcher(Parser parser, List<File> inputs, boolean batch) {
+        this(parser, inputs, batch, DEFAULT_QUIET_MILLIS);
+    }
+
+    public Watcher(Parser parser, List<File> inputs, boolean batch, long quietMillis) {
+        IllegalArgumentAssertion.assertNotNull(parser, "parser");
+        IllegalArgumentAssertion.assertNotNull(inputs, "inputs");
+        this.parser = parser;
+        this.options = parser.getOptions();
+        this.inputs = new ArrayList<>(inputs);
+        this.batch = batch;
+        this.quietMillis = quietMillis;
+    }
+
+    /**
+     * Convert all inputs, then convert the affected inputs on every change until interrupted
+     */
+    public void run() throws IOException {
+        convert(inputs);
+        Map<Path, Set<File>> dependents = getDependents();
+        Path config = getConfiguration();
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            Set<Path> dirs = new HashSet<>();
+            for (Path path : dependents.keySet()) {
+                if (dirs.add(path.getParent())) {
+                    path.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+                }
+            }
+            if (config != null && dirs.add(config.getParent())) {
+                config.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+            log.info("Watching {} files for changes", dependents.size());
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new HashSet<>();
+                collect(service.take(), changed);
+                WatchKey key = service.poll(quietMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    collect(key, changed);
+                    key = service.poll(quietMillis, TimeUnit.MILLISECONDS);
+                }
+                
+                Set<File> affected = new LinkedHashSet<>();
+                if (changed.contains(null) || (config != null && changed.contains(config))) {
+                    log.info("Reload configuration");
+                    parser = new ParserBuilder(options).build();
+                    affected.addAll(inputs);
+                }
+                for (Path path : changed) {
+                    Set<File> files = dependents.get(path);
+                    if (files != null) {
+                        affected.addAll(files);
+                    }
+                }
+                if (!affected.isEmpty()) {
+                    convert(new ArrayList<>(affected));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the changed files of the key, or null when events were lost
+     */
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed.add(null);
+            } else {
+                changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Map the watched files to the inputs that depend on them
+     */
+    private Map<Path, Set<File>> getDependents() {
+        Map<Path, Set<File>> result = new LinkedHashMap<>();
+        for (File infile : inputs) {
+            Path source = infile.toPath().toAbsolutePath().normalize();
+            Path basedir = source.getParent();
+            List<Path> paths = new ArrayList<>();
+            paths.add(source);
+            paths.add(basedir.resolve(Parser.CONFIGURATION_PROPERTIES));
+            paths.add(basedir.resolve(options.getOpfTemplate()));
+            if (options.getExternalCSS() != null) {
+                paths.add(options.getExternalCSS());
+            }
+            for (Path path : paths) {
+                path = path.toAbsolutePath().normalize();
+                if (!result.containsKey(path)) {
+                    result.put(path, new LinkedHashSet<File>());
+                }
+                result.get(path).add(infile);
+            }
+        }
+        return result;
+    }
+
+    private Path getConfiguration() {
+        String location = System.getProperty(Parser.SYSTEM_PROPERTY_CONFIGURATION);
+        if (location != null && location.startsWith("file:")) {
+            try {
+                return Paths.get(new URI(location)).toAbsolutePath().normalize();
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                log.warn("Cannot watch configuration: {}", location);
+            }
+        }
+        return null;
+    }
+
+    private void convert(List<File> files) {
+        long start = System.currentTimeMillis();
+        try {
+            if (batch) {
+                for (BatchProcessor.Result result : new BatchProcessor(parser).process(files)) {
+                    System.out.println(result);
+                }
+            } else {
+                for (File infile : files) {
+                    parser.convert(infile);
+                }
+            }
+            log.info("Converted {} files in {} ms", files.size(), System.currentTimeMillis() - start);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            log.error("Cannot convert: " + files, ex);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.mobi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a MOBI book as a Palm database.
+ * 
+ * Record 0 holds the PalmDOC and MOBI headers, the EXTH metadata and the full title. 
+ * It is followed by the PalmDOC compressed text records, the image records and the 
+ * FLIS, FCIS and EOF records. The text records are compressed on a worker pool.
+ */
+public final class MobiWriter {
+
+    private static Logger log = LoggerFactory.getLogger(MobiWriter.class);
+    
+    public static final int RECORD_SIZE = 4096;
+    
+    static final int PDB_HEADER_LENGTH = 78;
+    static final int PALMDOC_HEADER_LENGTH = 16;
+    static final int MOBI_HEADER_LENGTH = 232;
+    static final int COMPRESSION_PALMDOC = 2;
+    static final int ENCODING_UTF8 = 65001;
+    static final int NO_INDEX = 0xFFFFFFFF;
+    
+    static final int EXTH_AUTHOR = 100;
+    static final int EXTH_COVER_OFFSET = 201;
+    static final int EXTH_UPDATED_TITLE = 503;
+    static final int EXTH_LANGUAGE = 524;
+    
+    private static final Map<String, Integer> LOCALES = new HashMap<>();
+    static {
+        String[] codes = { "zh", "de", "en", "es", "fr", "it", "ja", "nl", "pt", "ru" };
+        int[] ids = { 4, 7, 9, 10, 12, 16, 17, 19, 22, 25 };
+        for (int i = 0; i < codes.length; i++) {
+            LOCALES.put(codes[i], ids[i]);
+        }
+    }
+    
+    private static final byte[] FLIS = { 'F', 'L', 'I', 'S', 0, 0, 0, 8, 0, 0x41, 0, 0, 0, 0, 0, 0, 
+            -1, -1, -1, -1, 0, 1, 0, 3, 0, 0, 0, 3, 0, 0, 0, 1, -1, -1, -1, -1 };
+    private static final byte[] EOF = { (byte) 0xE9, (byte) 0x8E, 0x0D, 0x0A };
+    
+    private final String title;
+    private String author;
+    private String language;
+    private byte[] text = new byte[0];
+    private final List<byte[]> images = new ArrayList<>();
+    private int coverIndex = -1;
+    private long timestamp;
+    private int parallelism = 1;
+
+    public MobiWriter(String title) {
+        IllegalArgumentAssertion.assertNotNull(title, "title");
+        this.title = title;
+    }
+
+    public void setAuthor(String author) {
+        this.author = author;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    /**
+     * Set the UTF-8 encoded book markup
+     */
+    public void setText(byte[] text) {
+        IllegalArgumentAssertion.assertNotNull(text, "text");
+        this.text = text;
+    }
+
+    /**
+     * Add an image record and return its 1-based index for the recindex attribute
+     */
+    public int addImage(byte[] image) {
+        IllegalArgumentAssertion.assertNotNull(image, "image");
+        images.add(image);
+        return images.size();
+    }
+
+    /**
+     * Set the 1-based index of the cover image
+     */
+    public void setCoverImage(int index) {
+        IllegalArgumentAssertion.assertTrue(index > 0 && index <= images.size(), "Invalid image index: " + index);
+        this.coverIndex = index - 1;
+    }
+
+    /**
+     * Set the creation and modification time in seconds since the epoch
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get a SHA-1 over everything that goes into the book
+     */
+    public String getDigest() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            String metadata = title + "\n" + author + "\n" + language + "\n" + timestamp + "\n" + coverIndex + "\n";
+            digest.update(metadata.getBytes(StandardCharsets.UTF_8));
+            digest.update(text);
+            for (byte[] image : images) {
+                digest.update(toBytes(image.length));
+                digest.update(image);
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest.digest()) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        path.toAbsolutePath().getParent().toFile().mkdirs();
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(out);
+        }
+        log.info("Written MOBI: {}", path);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        List<byte[]> textRecords = compressRecords(splitText());
+        
+        List<byte[]> records = new ArrayList<>();
+        records.add(null);
+        records.addAll(textRecords);
+        int firstImage = images.isEmpty() ? NO_INDEX : records.size();
+        records.addAll(images);
+        int lastContent = records.size() - 1;
+        int flisIndex = records.size();
+        records.add(FLIS);
+        records.add(buildFCIS());
+        records.add(EOF);
+        records.set(0, buildHeaderRecord(textRecords.size(), firstImage, lastContent, flisIndex));
+
+        DataOutputStream dout = new DataOutputStream(out);
+        writeDatabaseHeader(dout, records);
+        for (byte[] record : records) {
+            dout.write(record);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Split the text into records of at most 4096 bytes that end on a char boundary
+     */
+    private List<int[]> splitText() {
+        List<int[]> result = new ArrayList<>();
+        int start = 0;
+        while (start < text.length) {
+            int end = Math.min(start + RECORD_SIZE, text.length);
+            while (end < text.length && end > start + 1 && (text[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            result.add(new int[] { start, end - start });
+            start = end;
+        }
+        return result;
+    }
+
+    private List<byte[]> compressRecords(List<int[]> ranges) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        if (parallelism < 2 || ranges.size() < 2) {
+            for (int[] range : ranges) {
+                result.add(PalmDocCompression.compress(text, range[0], range[1]));
+            }
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()));
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (final int[] range : ranges) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return PalmDocCompression.compress(text, range[0], range[1]);
+                    }
+                }));
+            }
+            for (Future<byte[]> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void writeDatabaseHeader(DataOutputStream out, List<byte[]> records) throws IOException {
+        byte[] name = new byte[32];
+        byte[] ascii = title.replaceAll("[^A-Za-z0-9]+", "_").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(ascii, 0, name, 0, Math.min(ascii.length, 31));
+        out.write(name);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeInt((int) timestamp);
+        out.writeInt((int) timestamp);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.write("BOOKMOBI".getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(2 * records.size() - 1);
+        out.writeInt(0);
+        out.writeShort(records.size());
+        int offset = PDB_HEADER_LENGTH + 8 * records.size() + 2;
+        for (int i = 0; i < records.size(); i++) {
+            out.writeInt(offset);
+            out.writeInt(2 * i);
+            offset += records.get(i).length;
+        }
+        out.writeShort(0);
+    }
+
+    private byte[] buildHeaderRecord(int textCount, int firstImage, int lastContent, int flisIndex) throws IOException {
+        byte[] exth = buildEXTH();
+        byte[] fullName = title.getBytes(StandardCharsets.UTF_8);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        // PalmDOC header
+        out.writeShort(COMPRESSION_PALMDOC);
+        out.writeShort(0);
+        out.writeInt(text.length);
+        out.writeShort(textCount);
+        out.writeShort(RECORD_SIZE);
+        out.writeShort(0);
+        out.writeShort(0);
+        
+        // MOBI header
+        out.write("MOBI".getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(MOBI_HEADER_LENGTH);
+        out.writeInt(2);
+        out.writeInt(ENCODING_UTF8);
+        out.writeInt(title.hashCode());
+        out.writeInt(6);
+        for (int i = 0; i < 10; i++) {
+            out.writeInt(NO_INDEX);
+        }
+        out.writeInt(textCount + 1);
+        out.writeInt(PALMDOC_HEADER_LENGTH + MOBI_HEADER_LENGTH + exth.length);
+        out.writeInt(fullName.length);
+        out.writeInt(getLocale());
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(6);
+        out.writeInt(firstImage);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0x40);
+        out.write(new byte[32]);
+        out.writeInt(NO_INDEX);
+        out.writeInt(NO_INDEX);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.write(new byte[8]);
+        out.writeShort(1);
+        out.writeShort(lastContent);
+        out.writeInt(1);
+        out.writeInt(flisIndex + 1);
+        out.writeInt(1);
+        out.writeInt(flisIndex);
+        out.writeInt(1);
+        out.write(new byte[8]);
+        out.writeInt(NO_INDEX);
+        out.writeInt(0);
+        out.writeInt(NO_INDEX);
+        out.writeInt(NO_INDEX);
+        out.writeInt(0);
+        out.writeInt(NO_INDEX);
+        
+        out.write(exth);
+        out.write(fullName);
+        
+        // Pad the full name with at least two zeros to a multiple of four
+        int padding = 2;
+        while ((bytes.size() + padding) % 4 != 0) {
+            padding++;
+        }
+        out.write(new byte[padding]);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] buildEXTH() throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int count = 0;
+        if (author != null) {
+            count += writeEXTHRecord(out, EXTH_AUTHOR, author.getBytes(StandardCharsets.UTF_8));
+        }
+        if (coverIndex >= 0) {
+            count += writeEXTHRecord(out, EXTH_COVER_OFFSET, toBytes(coverIndex));
+        }
+        count += writeEXTHRecord(out, EXTH_UPDATED_TITLE, title.getBytes(StandardCharsets.UTF_8));
+        if (language != null) {
+            count += writeEXTHRecord(out, EXTH_LANGUAGE, language.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream exth = new DataOutputStream(bytes);
+        exth.write("EXTH".getBytes(StandardCharsets.US_ASCII));
+        exth.writeInt(12 + records.size());
+        exth.writeInt(count);
+        exth.write(records.toByteArray());
+        exth.write(new byte[(4 - records.size() % 4) % 4]);
+        return bytes.toByteArray();
+    }
+
+    private int writeEXTHRecord(DataOutputStream out, int type, byte[] data) throws IOException {
+        out.writeInt(type);
+        out.writeInt(8 + data.length);
+        out.write(data);
+        return 1;
+    }
+
+    private byte[] buildFCIS() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write("FCIS".getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(0x14);
+        out.writeInt(0x10);
+        out.writeInt(0x01);
+        out.writeInt(0);
+        out.writeInt(text.length);
+        out.writeInt(0);
+        out.writeInt(0x20);
+        out.writeInt(0x08);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(0);
+        return bytes.toByteArray();
+    }
+
+    private int getLocale() {
+        if (language == null) {
+            return 0;
+        }
+        Integer locale = LOCALES.get(language.toLowerCase().split("[-_]")[0]);
+        return locale != null ? locale : 0;
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+}
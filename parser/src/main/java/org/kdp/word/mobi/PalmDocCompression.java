@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.mobi;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.kdp.word.utils.IllegalArgumentAssertion;
+
+/**
+ * PalmDOC LZ77 compression of MOBI text records.
+ * 
+ * Bytes 0x01-0x08 are followed by that many literal bytes, 0x00 and 0x09-0x7F are 
+ * literals, 0x80-0xBF start a distance/length pair and 0xC0-0xFF encode a space 
+ * followed by a char in 0x40-0x7F. Matches are found with hash chains over the 
+ * 2047 byte window.
+ */
+public final class PalmDocCompression {
+
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 10;
+    static final int MAX_DISTANCE = 2047;
+    
+    private static final int HASH_BITS = 12;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    
+    // Hide ctor
+    private PalmDocCompression() {
+    }
+
+    public static byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+    
+    public static byte[] compress(byte[] data, int off, int len) {
+        IllegalArgumentAssertion.assertTrue(off >= 0 && len >= 0 && off + len <= data.length, "Invalid range: " + off + "," + len);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+        int[] head = new int[HASH_SIZE];
+        int[] prev = new int[len];
+        Arrays.fill(head, -1);
+        int indexed = 0;
+        int i = 0;
+        while (i < len) {
+            
+            // Add the positions before i to the hash chains
+            for (; indexed < i && indexed + MIN_MATCH <= len; indexed++) {
+                int hash = hash(data, off + indexed);
+                prev[indexed] = head[hash];
+                head[hash] = indexed;
+            }
+            
+            // Find the longest match that ends before i, the nearest one wins a tie
+            int matchLen = 0;
+            int matchDist = 0;
+            if (i + MIN_MATCH <= len) {
+                int hash = hash(data, off + i);
+                for (int cand = head[hash]; cand >= 0 && i - cand <= MAX_DISTANCE; cand = prev[cand]) {
+                    int max = Math.min(MAX_MATCH, Math.min(len - i, i - cand));
+                    int n = 0;
+                    while (n < max && data[off + cand + n] == data[off + i + n]) {
+                        n++;
+                    }
+                    if (n > matchLen) {
+                        matchLen = n;
+                        matchDist = i - cand;
+                        if (n == MAX_MATCH) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (matchLen >= MIN_MATCH) {
+                int code = 0x8000 | (matchDist << 3) | (matchLen - MIN_MATCH);
+                out.write(code >> 8);
+                out.write(code & 0xFF);
+                i += matchLen;
+                continue;
+            }
+            
+            int ch = data[off + i] & 0xFF;
+            if (ch == ' ' && i + 1 < len) {
+                int next = data[off + i + 1] & 0xFF;
+                if (next >= 0x40 && next < 0x80) {
+                    out.write(next ^ 0x80);
+                    i += 2;
+                    continue;
+                }
+            }
+            if (isLiteral(ch)) {
+                out.write(ch);
+                i++;
+                continue;
+            }
+            
+            // Up to 8 bytes that cannot be written as they are
+            int end = i + 1;
+            while (end < len && end - i < 8 && !isLiteral(data[off + end] & 0xFF)) {
+                end++;
+            }
+            out.write(end - i);
+            out.write(data, off + i, end - i);
+            i = end;
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] decompress(byte[] data) {
+        byte[] out = new byte[Math.max(16, data.length * 2)];
+        int pos = 0;
+        int i = 0;
+        while (i < data.length) {
+            if (out.length - pos < MAX_MATCH) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int ch = data[i++] & 0xFF;
+            if (ch >= 0x01 && ch <= 0x08) {
+                IllegalArgumentAssertion.assertTrue(i + ch <= data.length, "Truncated literal at: " + (i - 1));
+                System.arraycopy(data, i, out, pos, ch);
+                pos += ch;
+                i += ch;
+            } else if (ch < 0x80) {
+                out[pos++] = (byte) ch;
+            } else if (ch >= 0xC0) {
+                out[pos++] = ' ';
+                out[pos++] = (byte) (ch ^ 0x80);
+            } else {
+                IllegalArgumentAssertion.assertTrue(i < data.length, "Truncated pair at: " + (i - 1));
+                int pair = (ch << 8) | (data[i++] & 0xFF);
+                int dist = (pair >> 3) & 0x7FF;
+                int n = (pair & 0x07) + MIN_MATCH;
+                IllegalArgumentAssertion.assertTrue(dist > 0 && dist <= pos, "Invalid distance at: " + (i - 2));
+                for (int k = 0; k < n; k++, pos++) {
+                    out[pos] = out[pos - dist];
+                }
+            }
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static boolean isLiteral(int ch) {
+        return ch == 0 || (ch > 0x08 && ch < 0x80);
+    }
+
+    private static int hash(byte[] data, int pos) {
+        int value = (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF);
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
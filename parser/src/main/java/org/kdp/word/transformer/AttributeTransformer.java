@@ -20,87 +20,146 @@
 package org.kdp.word.transformer;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 import org.kdp.word.Parser;
-import org.kdp.word.Transformer;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Transforms element attributes according the word2mobi.properties 
  */
-public class AttributeTransformer implements Transformer {
+public class AttributeTransformer implements VisitingTransformer {
     
     private static Logger log = LoggerFactory.getLogger(AttributeTransformer.class);
     
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        ReplaceRules rules = getReplaceRules(context.getParser());
+        for (final Map.Entry<String, Map<String, Replace[]>> entry : rules.entrySet()) {
+            traversal.addVisitor(entry.getKey(), new Visitor() {
+                @Override
+                public void visit(Context context, Element element) {
+                    transformInternal(context, element, entry.getValue());
+                }
+            });
+        }
+    }
+
     @Override
     public void transform(Context context) {
-        Parser parser = context.getParser();
-        Element root = context.getSourceRoot();
-        Set<Replace> replace = new HashSet<>();
+        // attributes are replaced during the traversal
+    }
+
+    /**
+     * Get the replace rules compiled once per parser configuration
+     */
+    private ReplaceRules getReplaceRules(Parser parser) {
+        ReplaceRules rules = parser.getCompiled(ReplaceRules.class);
+        if (rules == null) {
+            rules = parser.putCompiled(ReplaceRules.class, compileReplaceRules(parser));
+        }
+        return rules;
+    }
+
+    private ReplaceRules compileReplaceRules(Parser parser) {
+        Map<String, Map<String, List<Replace>>> grouped = new HashMap<>();
         for (String key : parser.getPropertyKeys()) {
             String value = parser.getProperty(key);
             if (key.startsWith(Parser.PROPERTY_ATTRIBUTE_REPLACE)) {
                 String attid = key.substring(Parser.PROPERTY_ATTRIBUTE_REPLACE.length() + 1);
                 String[] keyItems = attid.split("\\.");
-                if (keyItems.length > 2) {
-                    int firstIndex = attid.indexOf('.');
-                    int secondIndex = attid.indexOf('.', firstIndex + 1);
-                    attid = attid.substring(0, secondIndex);
+                if (keyItems.length < 2) {
+                    log.warn("Ignore attribute replace without attribute name: {}", key);
+                    continue;
                 }
+                Replace replace;
                 String[] valueItems = value.split(",");
                 if (valueItems.length == 2) {
-                    replace.add(new Replace(attid, valueItems[0].trim(), valueItems[1].trim()));
+                    replace = new Replace(valueItems[0].trim(), valueItems[1].trim());
                 } else if (valueItems.length == 1) {
-                    replace.add(new Replace(attid, null, valueItems[0].trim()));
+                    replace = new Replace(null, valueItems[0].trim());
                 } else {
                     throw new IllegalStateException("Invalid attribute replace: " + key + "=" + value);
                 }
+                Map<String, List<Replace>> attrules = grouped.get(keyItems[0]);
+                if (attrules == null) {
+                    attrules = new HashMap<>();
+                    grouped.put(keyItems[0], attrules);
+                }
+                List<Replace> list = attrules.get(keyItems[1]);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    attrules.put(keyItems[1], list);
+                }
+                list.add(replace);
             }
         }
-        for (Element el : root.getChildren()) {
-            transformInternal(parser, el, replace);
+        ReplaceRules rules = new ReplaceRules();
+        for (Map.Entry<String, Map<String, List<Replace>>> entry : grouped.entrySet()) {
+            Map<String, Replace[]> attrules = new HashMap<>();
+            for (Map.Entry<String, List<Replace>> attentry : entry.getValue().entrySet()) {
+                List<Replace> list = attentry.getValue();
+                attrules.put(attentry.getKey(), list.toArray(new Replace[list.size()]));
+            }
+            rules.put(entry.getKey(), attrules);
         }
+        log.debug("Compiled attribute rules: {}", rules.keySet());
+        return rules;
     }
 
-    private void transformInternal(Parser parser, Element el, Set<Replace> replace) {
-        String elname = el.getName();
-        for (Attribute att : new ArrayList<Attribute>(el.getAttributes())) {
-            String attname = att.getName();
-            String attvalue = att.getValue();
-            String attid = elname + "." + attname;
-            for (Replace rep : replace) {
-                if (attid.equals(rep.attid)) {
-                    if (rep.substr == null || attvalue.contains(rep.substr)) {
-                        if (rep.newval == null || rep.newval.length() == 0) {
-                            log.debug("Remote attribute: {}", att);
-                            el.getAttributes().remove(att);
-                        } else {
-                            log.debug("Replace attribute: {}", att);
-                            att.setValue(rep.newval);
-                        }
-                        break;
-                    }
+    private void transformInternal(Context context, Element el, Map<String, Replace[]> attrules) {
+        List<Attribute> attributes = el.getAttributes();
+        for (int i = attributes.size() - 1; i >= 0; i--) {
+            Attribute att = attributes.get(i);
+            Replace rep = findReplace(attrules.get(att.getName()), att.getValue());
+            if (rep != null) {
+                if (rep.isRemove()) {
+                    log.debug("Remote attribute: {}", att);
+                    attributes.remove(i);
+                } else {
+                    log.debug("Replace attribute: {}", att);
+                    att.setValue(rep.newval);
+                    context.getElementIndex().update(el);
                 }
             }
         }
-        for (Element ch : el.getChildren()) {
-            transformInternal(parser, ch, replace);
+    }
+
+    private Replace findReplace(Replace[] replace, String attvalue) {
+        if (replace != null) {
+            for (Replace rep : replace) {
+                if (rep.substr == null || attvalue.contains(rep.substr)) {
+                    return rep;
+                }
+            }
         }
+        return null;
+    }
+
+    /**
+     * The replace rules by element name and attribute name, in property key order
+     */
+    @SuppressWarnings("serial")
+    static class ReplaceRules extends HashMap<String, Map<String, Replace[]>> {
     }
     
-    class Replace {
-        final String attid;
+    static class Replace {
         final String substr;
         final String newval;
-        Replace(String attid, String substr, String newval) {
-            this.attid = attid;
+        Replace(String substr, String newval) {
             this.substr = substr;
             this.newval = newval;
         }
+        boolean isRemove() {
+            return newval == null || newval.length() == 0;
+        }
     }
-}
\ No newline at end of file
+}
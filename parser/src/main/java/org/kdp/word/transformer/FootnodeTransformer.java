@@ -19,33 +19,90 @@
  */
 package org.kdp.word.transformer;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
 import org.jdom2.Parent;
-import org.kdp.word.Transformer;
+import org.kdp.word.Parser;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
+import org.kdp.word.transformer.SectionTransformer.Section;
+import org.kdp.word.utils.IOUtils;
 import org.kdp.word.utils.IllegalArgumentAssertion;
-import org.kdp.word.utils.JDOMUtils;
+import org.kdp.word.utils.IllegalStateAssertion;
 
 /**
- * Transform footnode references
+ * Transform footnode references and footnode texts
+ * 
+ * Each footnode text is turned into an aside. With 'footnote.endnotes' the asides 
+ * are moved to a separate endnotes document, which is written by the {@link SectionTransformer}  
  */
-public class FootnodeTransformer implements Transformer {
+public class FootnodeTransformer implements VisitingTransformer {
+
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        final FootnodeLinks fnlinks = new FootnodeLinks();
+        context.putAttribute(FootnodeLinks.class, fnlinks);
+        traversal.addVisitor("a", new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                String id = isFootnodeRef(element);
+                if (id != null) {
+                    fnlinks.refs.put(id, element);
+                }
+                id = isFootnodeText(element);
+                if (id != null) {
+                    fnlinks.texts.put(id, element);
+                }
+            }
+        });
+    }
 
     @Override
     public void transform(Context context) {
 
+        FootnodeLinks fnlinks = context.getAttribute(FootnodeLinks.class);
+        if (fnlinks == null)
+            return;
+        
         Map<String, Footnode> footnodes = new LinkedHashMap<>();
-
-        Element root = context.getSourceRoot();
-        for (Element el : root.getChildren()) {
-            findFootnodes(context, el, footnodes);
+        for (Map.Entry<String, Element> entry : fnlinks.refs.entrySet()) {
+            String id = entry.getKey();
+            Element fntxt = fnlinks.texts.get(id);
+            IllegalStateAssertion.assertNotNull(fntxt, "Cannot find footnode text for: " + id);
+            footnodes.put(id, new Footnode(id, entry.getValue(), fntxt));
         }
+        if (footnodes.isEmpty())
+            return;
 
+        // Endnotes document
+        Parser parser = context.getParser();
         JDOMFactory factory = context.getJDOMFactory();
+        String endnotesName = parser.getProperty(Parser.PROPERTY_FOOTNOTE_ENDNOTES);
+        Endnotes endnotes = null;
+        if (endnotesName != null && endnotesName.trim().length() > 0) {
+            endnotesName = endnotesName.trim();
+            int dotidx = endnotesName.lastIndexOf('.');
+            endnotesName = dotidx > 0 ? endnotesName.substring(0, dotidx) : endnotesName;
+            Element div = factory.element("div");
+            div.setAttribute("class", "Endnotes");
+            endnotes = new Endnotes(context, endnotesName, div);
+            context.putAttribute(Endnotes.class, endnotes);
+        }
+        
+        String refhref = "";
+        String txthref = "";
+        if (endnotes != null) {
+            refhref = IOUtils.bookRelative(context, endnotes.target).toString();
+            txthref = IOUtils.bookRelative(context, context.getTarget()).toString();
+        }
+        
         for (Footnode fn : footnodes.values()) {
             
             // Footnode Ref
@@ -59,59 +116,87 @@ public class FootnodeTransformer implements Transformer {
             Element a = fnref.clone();
             a.removeContent();
             a.setText(text);
-            //a.setAttribute("type", "noteref", OPFTransformer.NS_OPF);
+            a.setAttribute("href", refhref + "#" + fn.id);
             span.addContent(a);
             parent.addContent(index, span);
+            context.getElementIndex().add(span);
             
-            /* Footnode Text
+            // Footnode Text
             Element fntxt = fn.fntxt;
-            Element p = findMsoFootnoteText(fntxt); 
-            text = getFootnodeText(p);
-            p.getAttributes().clear();
-            p.removeContent();
-            p.setText(text);
-            String divid = fn.id.substring(1);
-            Element div = JDOMUtils.findElement(root, "div", "id", divid);
-            IllegalStateAssertion.assertSame(p.getParentElement(), div, "Unexpected parent: " + div);
-            Parent divparent = div.getParent();
+            Element p = fntxt.getParentElement();
+            Element container = getFootnodeContainer(p);
+            text = getFootnodeText(fntxt);
+            index = p.indexOf(fntxt);
+            p.removeContent(index);
+            Element backref = factory.element("a");
+            Attribute att = fnref.getAttribute("name");
+            if (att != null) {
+                backref.setAttribute("href", txthref + "#" + att.getValue());
+                if (endnotes != null) {
+                    endnotes.backrefs.put(backref, span);
+                }
+            }
+            backref.setText(text);
+            p.addContent(index, backref);
+            
             Element aside = factory.element("aside");
             aside.setAttribute("type", "footnote", OPFTransformer.NS_OPF);
             aside.setAttribute("id", fn.id);
-            index = divparent.indexOf(div);
-            divparent.removeContent(div);
-            aside.addContent(p.clone());
-            divparent.addContent(index, aside);
-            */
+            Parent cparent = container.getParent();
+            index = cparent.indexOf(container);
+            cparent.removeContent(index);
+            if (container == p) {
+                aside.addContent(p);
+            } else {
+                aside.addContent(container.removeContent());
+            }
+            if (endnotes != null) {
+                endnotes.element.addContent(aside);
+            } else {
+                cparent.addContent(index, aside);
+                context.getElementIndex().add(aside);
+            }
         }
     }
 
-    private void findFootnodes(Context context, Element el, Map<String, Footnode> footnodes) {
-        String id = isFootnodeRef(el);
-        if (id != null) {
-            Element root = context.getSourceRoot();
-            Element fntxt = JDOMUtils.findElement(root, "a", "name", id);
-            footnodes.put(id, new Footnode(id, el, fntxt));
-        } else {
-            for (Element ch : el.getChildren()) {
-                findFootnodes(context, ch, footnodes);
+    private String isFootnodeRef(Element el) {
+        String result = null;
+        Attribute att = el.getAttribute("href");
+        if (att != null) {
+            String value = att.getValue();
+            if (value.startsWith("#_ftn") && !value.startsWith("#_ftnref")) { 
+                result = value.substring(1);
             }
         }
+        return result;
     }
 
-    private String isFootnodeRef(Element el) {
+    private String isFootnodeText(Element el) {
         String result = null;
-        if (JDOMUtils.isElement(el, "a", null, null)) {
-            Attribute att = el.getAttribute("href");
-            if (att != null) {
-                String value = att.getValue();
-                if (value.startsWith("#_ftn")) { 
-                    result = value.substring(1);
-                }
+        Attribute att = el.getAttribute("name");
+        if (att != null) {
+            String value = att.getValue();
+            if (value.startsWith("_ftn") && !value.startsWith("_ftnref")) { 
+                result = value;
             }
         }
         return result;
     }
 
+    /**
+     * Word wraps each footnode text in a div with id 'ftnX'
+     */
+    private Element getFootnodeContainer(Element p) {
+        Element parent = p.getParentElement();
+        if (parent != null && "div".equals(parent.getName())) {
+            String divid = parent.getAttributeValue("id");
+            if (divid != null && divid.startsWith("ftn")) {
+                return parent;
+            }
+        }
+        return p;
+    }
+
     private String getFootnodeText(Element el) {
         String result = el.getText().trim();
         if (result.length() == 0) {
@@ -122,6 +207,11 @@ public class FootnodeTransformer implements Transformer {
         return result;
     }
 
+    static class FootnodeLinks {
+        final Map<String, Element> refs = new LinkedHashMap<>();
+        final Map<String, Element> texts = new HashMap<>();
+    }
+
     static class Footnode {
         
         final String id;
@@ -137,4 +227,40 @@ public class FootnodeTransformer implements Transformer {
             this.fntxt = fntxt;
         }
     }
-}
\ No newline at end of file
+    
+    static class Endnotes extends Section {
+        
+        // back link to the footnode reference it points to
+        final Map<Element, Element> backrefs = new LinkedHashMap<>();
+        
+        Endnotes(Context context, String name, Element element) {
+            super(context, name, element);
+        }
+        
+        /**
+         * Point the back links at the section documents that the references were moved to
+         */
+        void resolveBackrefs(Context context, List<Section> sections) {
+            for (Map.Entry<Element, Element> entry : backrefs.entrySet()) {
+                Element backref = entry.getKey();
+                Section owner = getOwner(entry.getValue(), sections);
+                if (owner != null) {
+                    String href = backref.getAttributeValue("href");
+                    String fragment = href.substring(href.indexOf('#'));
+                    backref.setAttribute("href", IOUtils.bookRelative(context, owner.target).toString() + fragment);
+                }
+            }
+        }
+        
+        private Section getOwner(Element element, List<Section> sections) {
+            for (Element el = element; el != null; el = el.getParentElement()) {
+                for (Section section : sections) {
+                    if (section.element == el) {
+                        return section;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
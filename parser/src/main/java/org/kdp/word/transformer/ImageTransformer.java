@@ -0,0 +1,422 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.transformer;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.Parser;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the referenced images to the book dir.
+ * 
+ * Images are scaled down to the configured limits and recompressed on a worker pool 
+ * that is shared by all conversions, while the other transformers run. GIFs are copied 
+ * as they are, so that animations are kept. Results are cached by content hash, so that 
+ * an unchanged image is not processed again. Transformers that need the images wait 
+ * for them with {@link Images#await()}, the parser waits for them before the build 
+ * manifest is saved.
+ */
+public class ImageTransformer implements VisitingTransformer {
+    
+    private static Logger log = LoggerFactory.getLogger(ImageTransformer.class);
+    
+    static final int DEFAULT_MAX_WIDTH = 1600;
+    static final int DEFAULT_MAX_HEIGHT = 2560;
+    static final int DEFAULT_MAX_BYTES = 127 * 1024;
+    static final float DEFAULT_JPEG_QUALITY = 0.85f;
+    static final float MIN_JPEG_QUALITY = 0.5f;
+    
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        BuildManifest manifest = context.getAttribute(BuildManifest.class);
+        final Images images = new Images(new Limits(context.getParser()), manifest, getCacheDir(context), getParallelism(context));
+        context.putAttribute(Images.class, images);
+        traversal.addVisitor("img", new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                Attribute att = element.getAttribute("src");
+                String href = att != null ? images.submit(context, att.getValue()) : null;
+                if (href != null) {
+                    att.setValue(href);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void transform(Context context) {
+        // the images are processed in the background
+    }
+
+    private Path getCacheDir(Context context) {
+        String value = context.getParser().getProperty(Parser.PROPERTY_IMAGE_CACHE_DIR);
+        if (value == null) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "word2mobi", "images");
+        }
+        return value.trim().isEmpty() ? null : Paths.get(value.trim());
+    }
+    
+    private int getParallelism(Context context) {
+        String value = context.getParser().getProperty(Parser.PROPERTY_IMAGE_PARALLELISM);
+        return value != null ? parseInt(Parser.PROPERTY_IMAGE_PARALLELISM, value) : Runtime.getRuntime().availableProcessors();
+    }
+    
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("Invalid " + key + ": " + value, ex);
+        }
+    }
+
+    /**
+     * The images of a conversion and their pending results
+     */
+    public static class Images {
+        
+        private static ExecutorService sharedExecutor;
+        
+        private final Limits limits;
+        private final BuildManifest manifest;
+        private final Path cacheDir;
+        private final int parallelism;
+        private final Map<String, Future<Image>> futures = new LinkedHashMap<>();
+        private final Queue<FutureTask<Image>> queued = new ArrayDeque<>();
+        private int running;
+        
+        Images(Limits limits, BuildManifest manifest, Path cacheDir, int parallelism) {
+            this.limits = limits;
+            this.manifest = manifest;
+            this.cacheDir = cacheDir;
+            this.parallelism = Math.max(1, parallelism);
+        }
+        
+        /**
+         * Start processing the image and return its href in the book
+         */
+        synchronized String submit(Context context, String src) {
+            String path = src;
+            try {
+                URI uri = new URI(src);
+                if (uri.isAbsolute()) {
+                    return null;
+                }
+                path = uri.getPath();
+            } catch (URISyntaxException ex) {
+                // not encoded
+            }
+            final Path source = context.getBasedir().resolve(path).normalize();
+            Path bookDir = context.getOptions().getBookDir().toAbsolutePath().normalize();
+            Path target = bookDir.resolve(path).normalize();
+            String href = src;
+            if (!target.startsWith(bookDir)) {
+                href = "images/" + source.getFileName().toString().replace(" ", "%20");
+                target = bookDir.resolve("images").resolve(source.getFileName());
+            }
+            if (!source.toFile().isFile() || source.toAbsolutePath().equals(target)) {
+                log.debug("Not copying image: {}", source);
+                return null;
+            }
+            if (!futures.containsKey(href)) {
+                final Path fileTarget = target;
+                final String fileHref = href;
+                FutureTask<Image> task = new FutureTask<>(new Callable<Image>() {
+                    @Override
+                    public Image call() throws Exception {
+                        return process(source, fileTarget, fileHref);
+                    }
+                });
+                futures.put(href, task);
+                dispatch(task);
+            }
+            return href;
+        }
+        
+        /**
+         * Wait for the processed images and rethrow the first failure
+         */
+        public synchronized List<Image> await() {
+            List<Image> result = new ArrayList<>();
+            try {
+                for (Future<Image> future : futures.values()) {
+                    result.add(future.get());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+            return result;
+        }
+        
+        /**
+         * Queue the task and start a worker on the shared pool, unless this conversion 
+         * already has the configured number of workers
+         */
+        private void dispatch(FutureTask<Image> task) {
+            synchronized (queued) {
+                queued.add(task);
+                if (running >= parallelism) {
+                    return;
+                }
+                running++;
+            }
+            getSharedExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    FutureTask<Image> next = poll();
+                    while (next != null) {
+                        next.run();
+                        next = poll();
+                    }
+                }
+            });
+        }
+        
+        private FutureTask<Image> poll() {
+            synchronized (queued) {
+                FutureTask<Image> next = queued.poll();
+                if (next == null) {
+                    running--;
+                }
+                return next;
+            }
+        }
+        
+        private static synchronized ExecutorService getSharedExecutor() {
+            if (sharedExecutor == null) {
+                sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "word2mobi-image");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sharedExecutor;
+        }
+        
+        private Image process(Path source, Path target, String href) throws IOException {
+            byte[] input = Files.readAllBytes(source);
+            String format = getFormat(source);
+            byte[] output = input;
+            if (format != null && !"gif".equals(format)) {
+                Path cached = cacheDir != null ? cacheDir.resolve(BuildManifest.digest(input) + limits.key + "." + format) : null;
+                if (cached != null && cached.toFile().isFile()) {
+                    log.debug("Cached image: {}", source);
+                    output = Files.readAllBytes(cached);
+                } else {
+                    log.debug("Optimize image: {}", source);
+                    output = limits.apply(input, format);
+                    if (cached != null) {
+                        store(cached, output);
+                    }
+                }
+            }
+            manifest.write(target, output);
+            return new Image(href, target, getMediaType(format, source));
+        }
+        
+        private void store(Path cached, byte[] bytes) throws IOException {
+            cached.getParent().toFile().mkdirs();
+            Path temp = Files.createTempFile(cached.getParent(), "image", ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        private static String getFormat(Path path) {
+            String name = path.getFileName().toString().toLowerCase();
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+                return "jpeg";
+            } else if (name.endsWith(".png")) {
+                return "png";
+            } else if (name.endsWith(".gif")) {
+                return "gif";
+            }
+            return null;
+        }
+        
+        private static String getMediaType(String format, Path path) {
+            if (format != null) {
+                return "image/" + format;
+            }
+            return path.toString().toLowerCase().endsWith(".svg") ? "image/svg+xml" : "application/octet-stream";
+        }
+    }
+    
+    public static class Image {
+        final String href;
+        final Path path;
+        final String mediaType;
+        Image(String href, Path path, String mediaType) {
+            this.href = href;
+            this.path = path;
+            this.mediaType = mediaType;
+        }
+    }
+    
+    /**
+     * The configured size limits and JPEG quality
+     */
+    static class Limits {
+        
+        final int maxWidth;
+        final int maxHeight;
+        final int maxBytes;
+        final float quality;
+        final String key;
+        
+        Limits(Parser parser) {
+            String value = parser.getProperty(Parser.PROPERTY_IMAGE_MAX_WIDTH);
+            maxWidth = value != null ? parseInt(Parser.PROPERTY_IMAGE_MAX_WIDTH, value) : DEFAULT_MAX_WIDTH;
+            value = parser.getProperty(Parser.PROPERTY_IMAGE_MAX_HEIGHT);
+            maxHeight = value != null ? parseInt(Parser.PROPERTY_IMAGE_MAX_HEIGHT, value) : DEFAULT_MAX_HEIGHT;
+            value = parser.getProperty(Parser.PROPERTY_IMAGE_MAX_BYTES);
+            maxBytes = value != null ? parseInt(Parser.PROPERTY_IMAGE_MAX_BYTES, value) : DEFAULT_MAX_BYTES;
+            value = parser.getProperty(Parser.PROPERTY_IMAGE_JPEG_QUALITY);
+            try {
+                quality = value != null ? Float.parseFloat(value.trim()) : DEFAULT_JPEG_QUALITY;
+            } catch (NumberFormatException ex) {
+                throw new IllegalStateException("Invalid " + Parser.PROPERTY_IMAGE_JPEG_QUALITY + ": " + value, ex);
+            }
+            key = "-" + maxWidth + "x" + maxHeight + "-" + maxBytes + "-" + quality;
+        }
+        
+        /**
+         * Scale the image down to the size limits and recompress it. The input is 
+         * returned when the result would not be smaller.
+         */
+        byte[] apply(byte[] input, String format) throws IOException {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(input));
+            if (image == null) {
+                return input;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+            if (scale >= 1.0 && input.length <= maxBytes) {
+                return input;
+            }
+            boolean jpeg = "jpeg".equals(format);
+            if (scale < 1.0 || jpeg) {
+                int type = jpeg || image.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+                image = scale(image, Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)), type);
+            }
+            byte[] result;
+            if (jpeg) {
+                float current = quality;
+                result = writeJPEG(image, current);
+                while (result.length > maxBytes && current > MIN_JPEG_QUALITY) {
+                    current = Math.max(MIN_JPEG_QUALITY, current - 0.1f);
+                    result = writeJPEG(image, current);
+                }
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, format, out);
+                result = out.toByteArray();
+            }
+            return scale >= 1.0 && result.length >= input.length ? input : result;
+        }
+        
+        /**
+         * Scale in steps of at most one half, which keeps bilinear filtering sharp
+         */
+        private BufferedImage scale(BufferedImage image, int width, int height, int type) {
+            BufferedImage result = image;
+            int currentWidth = image.getWidth();
+            int currentHeight = image.getHeight();
+            do {
+                currentWidth = Math.max(width, currentWidth / 2);
+                currentHeight = Math.max(height, currentHeight / 2);
+                BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+                Graphics2D graphics = next.createGraphics();
+                try {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                    graphics.drawImage(result, 0, 0, currentWidth, currentHeight, null);
+                } finally {
+                    graphics.dispose();
+                }
+                result = next;
+            } while (currentWidth != width || currentHeight != height);
+            return result;
+        }
+        
+        private byte[] writeJPEG(BufferedImage image, float quality) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            return out.toByteArray();
+        }
+    }
+}
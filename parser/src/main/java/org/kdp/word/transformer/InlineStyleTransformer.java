@@ -0,0 +1,177 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.transformer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.kdp.word.ElementIndex;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
+import org.kdp.word.transformer.StyleTransformer.StyleSheet;
+import org.kdp.word.utils.CSSParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces inline style attributes with generated classes.
+ * 
+ * Declarations are normalized and mso-* properties dropped. Elements with the same 
+ * declarations share a class named after their hash. The rules are appended to the 
+ * book stylesheet, or put in a style element when there is none. Selectors are qualified 
+ * with the element names, like p.w2m-1a2b, so that they are as specific as the 
+ * p.MsoNormal rules of Word and win by coming last. Configure this transformer after 
+ * the StyleTransformer, which would remove the generated classes.
+ */
+public class InlineStyleTransformer implements VisitingTransformer {
+    
+    private static Logger log = LoggerFactory.getLogger(InlineStyleTransformer.class);
+    
+    static final String CLASS_PREFIX = "w2m-";
+    
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        final InlineStyles styles = new InlineStyles();
+        context.putAttribute(InlineStyles.class, styles);
+        traversal.addVisitor(new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                Attribute att = element.getAttribute("style");
+                if (att != null) {
+                    transformInternal(context, styles, element, att);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void transform(Context context) {
+        InlineStyles styles = context.getAttribute(InlineStyles.class);
+        if (styles == null || styles.isEmpty()) {
+            return;
+        }
+        StringBuilder css = new StringBuilder();
+        for (Map.Entry<String, String> entry : styles.entrySet()) {
+            String classname = entry.getValue();
+            String separator = "";
+            for (String name : styles.elements.get(classname)) {
+                css.append(separator).append(name).append('.').append(classname);
+                separator = ", ";
+            }
+            css.append(" { ").append(entry.getKey()).append(" }\n");
+        }
+        StyleSheet stylesheet = context.getAttribute(StyleSheet.class);
+        if (stylesheet != null) {
+            log.debug("Append {} generated classes to: {}", styles.size(), stylesheet.path);
+            css.insert(0, "\n/* Generated from inline styles */\n");
+            stylesheet.append(css.toString());
+        } else {
+            ElementIndex index = context.getElementIndex();
+            Element elHead = index.findElement("head");
+            if (elHead != null) {
+                Element elStyle = context.getJDOMFactory().element("style");
+                elStyle.setAttribute("type", "text/css");
+                elStyle.setText(css.toString());
+                elHead.addContent(elStyle);
+                index.add(elStyle);
+            }
+        }
+    }
+
+    private void transformInternal(Context context, InlineStyles styles, Element element, Attribute att) {
+        String value = att.getValue();
+        String classname = styles.resolved.get(value);
+        if (classname == null) {
+            String declarations = normalize(value);
+            classname = declarations.isEmpty() ? "" : styles.getClassName(declarations);
+            styles.resolved.put(value, classname);
+        }
+        element.removeAttribute(att);
+        if (!classname.isEmpty()) {
+            styles.addElement(classname, element.getName());
+            Attribute attClass = element.getAttribute("class");
+            if (attClass != null) {
+                attClass.setValue(attClass.getValue() + " " + classname);
+            } else {
+                element.setAttribute("class", classname);
+            }
+            context.getElementIndex().update(element);
+        }
+    }
+
+    /**
+     * Get the declarations without mso-* properties in a canonical form
+     */
+    static String normalize(String style) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : CSSParser.parseDeclarations(style).entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith("mso-")) {
+                if (result.length() > 0) {
+                    result.append("; ");
+                }
+                result.append(name).append(": ").append(entry.getValue());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * The generated class names by normalized declarations
+     */
+    @SuppressWarnings("serial")
+    static class InlineStyles extends LinkedHashMap<String, String> {
+        
+        // class names by raw style value, empty if there is nothing left
+        final Map<String, String> resolved = new HashMap<>();
+        final Map<String, String> declarations = new HashMap<>();
+        // element names by class name
+        final Map<String, Set<String>> elements = new HashMap<>();
+        
+        void addElement(String classname, String name) {
+            Set<String> names = elements.get(classname);
+            if (names == null) {
+                names = new LinkedHashSet<>();
+                elements.put(classname, names);
+            }
+            names.add(name);
+        }
+        
+        String getClassName(String decls) {
+            String result = get(decls);
+            if (result == null) {
+                String name = CLASS_PREFIX + Integer.toHexString(decls.hashCode());
+                result = name;
+                for (int i = 1; declarations.containsKey(result); i++) {
+                    result = name + "-" + i;
+                }
+                declarations.put(result, decls);
+                put(decls, result);
+            }
+            return result;
+        }
+    }
+}
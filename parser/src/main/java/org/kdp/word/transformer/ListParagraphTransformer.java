@@ -21,6 +21,7 @@ package org.kdp.word.transformer;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import org.jdom2.Content;
@@ -28,28 +29,34 @@ import org.jdom2.Content.CType;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
 import org.jdom2.Text;
-import org.kdp.word.Transformer;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
 import org.kdp.word.utils.JDOMUtils;
 
 /**
  * Transforms an MsoListParagraph in an unordered list   
  */
-public class ListParagraphTransformer implements Transformer {
+public class ListParagraphTransformer implements VisitingTransformer {
     
     @Override
-    public void transform(Context context) {
-        Element root = context.getSourceRoot();
-        for (Element el : root.getChildren()) {
-            transformInternal(context, el);
-        }
+    public void registerVisitors(Context context, Traversal traversal) {
+        final ListParents parents = new ListParents();
+        context.putAttribute(ListParents.class, parents);
+        traversal.addVisitor("p", "MsoListParagraph", new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                parents.add(element.getParentElement());
+            }
+        });
     }
 
-    private void transformInternal(Context context, Element el) {
-        if (hasListItems(el)) {
-            processListItems(context, el);
-        } else {
-            for (Element ch : el.getChildren()) {
-                transformInternal(context, ch);
+    @Override
+    public void transform(Context context) {
+        ListParents parents = context.getAttribute(ListParents.class);
+        if (parents != null) {
+            for (Element parent : parents) {
+                processListItems(context, parent);
             }
         }
     }
@@ -92,12 +99,11 @@ public class ListParagraphTransformer implements Transformer {
         for (Element el : listItems) {
             Element li = factory.element("li");
             li.setAttribute("class", "MsoListParagraph");
-            for (Content co : el.getContent()) {
-                li.addContent(co.clone());
-            }
+            li.addContent(el.removeContent());
             ul.addContent(li);
         }
         parent.addContent(index, ul);
+        context.getElementIndex().add(ul);
     }
 
     private void removeNestedSpanElements(Element el) {
@@ -141,12 +147,7 @@ public class ListParagraphTransformer implements Transformer {
         return first.endsWith(".");
     }
 
-    private boolean hasListItems(Element el) {
-        for (Element ch : el.getChildren()) {
-            if (JDOMUtils.isElement(ch, "p", "class", "MsoListParagraph")) {
-                return true;
-            }
-        }
-        return false;
+    @SuppressWarnings("serial")
+    static class ListParents extends LinkedHashSet<Element> {
     }
 }
\ No newline at end of file
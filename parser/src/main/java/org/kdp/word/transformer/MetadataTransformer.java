@@ -21,22 +21,34 @@ package org.kdp.word.transformer;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
-import org.kdp.word.Transformer;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
 import org.kdp.word.utils.JDOMUtils;
 
 /**
  * Transforms the Generator meta element  
  */
-public class MetadataTransformer implements Transformer {
+public class MetadataTransformer implements VisitingTransformer {
     
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        traversal.addVisitor("meta", new Visitor() {
+            boolean found;
+            @Override
+            public void visit(Context context, Element element) {
+                if (!found && JDOMUtils.isElement(element, "meta", "name", "Generator")) {
+                    Attribute att = element.getAttribute("content");
+                    String attval = att.getValue();
+                    att.setValue(attval + " - word2mobi");
+                    found = true;
+                }
+            }
+        });
+    }
+
     @Override
     public void transform(Context context) {
-        Element root = context.getSourceRoot();
-        Element el = JDOMUtils.findElement(root, "meta", "name", "Generator");
-        if (el != null) {
-            Attribute att = el.getAttribute("content");
-            String attval = att.getValue();
-            att.setValue(attval + " - word2mobi");
-        }
+        // the generator is updated during the traversal
     }
 }
\ No newline at end of file
@@ -0,0 +1,314 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.transformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.Options;
+import org.kdp.word.Parser;
+import org.kdp.word.Transformer;
+import org.kdp.word.mobi.MobiWriter;
+import org.kdp.word.transformer.FootnodeTransformer.Endnotes;
+import org.kdp.word.transformer.ImageTransformer.Images;
+import org.kdp.word.transformer.SectionTransformer.Section;
+import org.kdp.word.transformer.SectionTransformer.Sections;
+import org.kdp.word.utils.IOUtils;
+import org.kdp.word.utils.IllegalStateAssertion;
+import org.kdp.word.utils.XHTMLSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generate a MOBI file from the book sections in spine order.
+ * 
+ * The parts are joined with page breaks into a single UTF-8 document. Links to 
+ * the parts and their anchors become filepos offsets and images become records.
+ */
+public class MobiTransformer implements Transformer {
+    
+    private static Logger log = LoggerFactory.getLogger(MobiTransformer.class);
+    
+    // fixed width, so that offsets can be filled in after the text is assembled
+    private static final String FILEPOS = "0000000000";
+    
+    @Override
+    public void transform(Context context) {
+        Options options = context.getOptions();
+        Path target = options.getMobi();
+        if (target == null)
+            return;
+        
+        Parser parser = context.getParser();
+        String title = parser.getProperty(Parser.PROPERTY_OPF_METADATA_TITLE);
+        IllegalStateAssertion.assertNotNull(title, "Cannot obtain property: " + Parser.PROPERTY_OPF_METADATA_TITLE);
+        MobiWriter writer = new MobiWriter(title);
+        writer.setAuthor(parser.getProperty(Parser.PROPERTY_OPF_METADATA_AUTHOR));
+        String language = parser.getProperty(Parser.PROPERTY_OPF_METADATA_LANGUAGE);
+        if (language != null && language.length() > 0) {
+            writer.setLanguage(language);
+        }
+        writer.setTimestamp(context.getSource().toFile().lastModified() / 1000);
+        writer.setParallelism(Runtime.getRuntime().availableProcessors());
+        
+        // Wait for the optimized images
+        Images images = context.getAttribute(Images.class);
+        if (images != null) {
+            images.await();
+        }
+        
+        BookText book = new BookText(context, writer);
+        String cover = parser.getProperty(Parser.PROPERTY_OPF_MANIFEST_COVER_IMAGE);
+        Integer coverIndex = cover != null ? book.addImage(cover) : null;
+        if (coverIndex != null) {
+            writer.setCoverImage(coverIndex);
+        }
+        
+        // Collect the parts in the order of the OPF spine
+        Map<String, Element> parts = new LinkedHashMap<>();
+        String navName = null;
+        Sections sections = context.getAttribute(Sections.class);
+        if (sections != null) {
+            for (Section section : sections) {
+                String name = getPartName(context, section.target);
+                parts.put(name, section.element);
+                navName = section.isnav ? name : navName;
+            }
+        }
+        Element body = context.getElementIndex().findElement("body");
+        IllegalStateAssertion.assertNotNull(body, "Cannot find body element");
+        parts.put(getPartName(context, context.getTarget()), body);
+        Endnotes endnotes = context.getAttribute(Endnotes.class);
+        if (endnotes != null) {
+            parts.put(getPartName(context, endnotes.target), endnotes.element);
+        }
+        
+        try {
+            writer.setText(book.build(title, parts, navName));
+            BuildManifest manifest = context.getAttribute(BuildManifest.class);
+            String digest = writer.getDigest();
+            if (manifest.isCurrent(target, digest)) {
+                manifest.keep(target);
+                log.info("Unchanged MOBI: {}", target);
+                return;
+            }
+            writer.write(target);
+            manifest.record(target, digest);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot write MOBI file: " + target, ex);
+        }
+    }
+
+    private String getPartName(Context context, Path path) {
+        return IOUtils.bookRelative(context, path).toString().replace('\\', '/');
+    }
+
+    /**
+     * Assembles the book markup and keeps track of the links between the parts
+     */
+    static class BookText implements XHTMLSerializer.OffsetListener {
+        
+        private final Context context;
+        private final MobiWriter writer;
+        private final Map<String, Integer> images = new HashMap<>();
+        private final Map<String, Integer> partStarts = new HashMap<>();
+        private final Map<String, Element> anchorElements = new HashMap<>();
+        private final Map<Element, Integer> anchors = new IdentityHashMap<>();
+        private final Map<Attribute, Link> pending = new IdentityHashMap<>();
+        private final List<Link> links = new ArrayList<>();
+        private int partStart;
+        
+        BookText(Context context, MobiWriter writer) {
+            this.context = context;
+            this.writer = writer;
+        }
+        
+        byte[] build(String title, Map<String, Element> parts, String navName) throws IOException {
+            XHTMLSerializer serializer = XHTMLSerializer.forContext(context, "UTF-8");
+            serializer.setOffsetListener(this);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StringBuilder head = new StringBuilder("<html><head><title>");
+            head.append(title.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")).append("</title>");
+            out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            if (navName != null) {
+                out.write("<guide><reference type=\"toc\" title=\"Table of Contents\" filepos=\"".getBytes(StandardCharsets.UTF_8));
+                Link link = new Link(navName, null);
+                link.offset = out.size();
+                links.add(link);
+                out.write((FILEPOS + "\" /></guide>").getBytes(StandardCharsets.UTF_8));
+            }
+            out.write("</head><body>".getBytes(StandardCharsets.UTF_8));
+            
+            WritableByteChannel channel = Channels.newChannel(out);
+            boolean first = true;
+            for (Map.Entry<String, Element> entry : parts.entrySet()) {
+                if (!first) {
+                    out.write("<mbp:pagebreak />".getBytes(StandardCharsets.UTF_8));
+                }
+                first = false;
+                
+                // Rewrite a copy, the parts are still written to their own documents
+                Element part = entry.getValue().clone();
+                if ("body".equals(part.getName())) {
+                    part.setName("div");
+                }
+                rewriteElements(part, parts);
+                partStart = out.size();
+                partStarts.put(entry.getKey(), partStart);
+                serializer.write("", part, 2, "", channel);
+            }
+            out.write("</body></html>".getBytes(StandardCharsets.UTF_8));
+            
+            byte[] text = out.toByteArray();
+            resolveLinks(text);
+            return text;
+        }
+        
+        /**
+         * Add the image file for the given source and return its record index
+         */
+        Integer addImage(String src) {
+            Integer index = images.get(src);
+            if (index == null) {
+                Path file = context.getOptions().getBookDir().resolve(src);
+                if (!file.toFile().isFile()) {
+                    file = context.getBasedir().resolve(src);
+                }
+                if (!file.toFile().isFile()) {
+                    log.warn("Cannot find image: {}", src);
+                    return null;
+                }
+                try {
+                    index = writer.addImage(Files.readAllBytes(file));
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Cannot read image: " + file, ex);
+                }
+                images.put(src, index);
+            }
+            return index;
+        }
+        
+        @Override
+        public void startElement(Element element, long offset) {
+            if (anchors.containsKey(element)) {
+                anchors.put(element, partStart + (int) offset);
+            }
+        }
+
+        @Override
+        public void attributeValue(Attribute att, long offset) {
+            Link link = pending.remove(att);
+            if (link != null) {
+                link.offset = partStart + (int) offset;
+            }
+        }
+
+        /**
+         * Replace image sources with record indexes and links to the parts with filepos 
+         * placeholders, and collect the anchors the links may point to
+         */
+        private void rewriteElements(Element part, Map<String, Element> parts) {
+            List<Element> elements = new ArrayList<>();
+            elements.add(part);
+            for (Element element : part.getDescendants(Filters.element())) {
+                elements.add(element);
+            }
+            for (Element element : elements) {
+                for (String name : new String[] { "id", "name" }) {
+                    String value = element.getAttributeValue(name);
+                    if (value != null && !anchorElements.containsKey(value)) {
+                        anchorElements.put(value, element);
+                        anchors.put(element, null);
+                    }
+                }
+                Attribute src = "img".equals(element.getName()) ? element.getAttribute("src") : null;
+                if (src != null) {
+                    Integer index = addImage(src.getValue());
+                    if (index != null) {
+                        src.setName("recindex").setValue(String.format("%05d", index));
+                    }
+                }
+                Attribute href = element.getAttribute("href");
+                if (href != null) {
+                    String value = href.getValue();
+                    int index = value.indexOf('#');
+                    String file = index < 0 ? value : value.substring(0, index);
+                    String fragment = index < 0 ? null : value.substring(index + 1);
+                    if ((file.isEmpty() && fragment != null) || parts.containsKey(file)) {
+                        href.setName("filepos").setValue(FILEPOS);
+                        Link link = new Link(file, fragment);
+                        pending.put(href, link);
+                        links.add(link);
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Fill in the filepos placeholders with the offset of the target anchor or part
+         */
+        private void resolveLinks(byte[] text) {
+            for (Link link : links) {
+                IllegalStateAssertion.assertTrue(link.offset >= 0, "Cannot find link placeholder");
+                Integer offset = null;
+                if (link.fragment != null) {
+                    Element element = anchorElements.get(link.fragment);
+                    offset = element != null ? anchors.get(element) : null;
+                }
+                if (offset == null) {
+                    offset = partStarts.get(link.file);
+                }
+                if (offset == null) {
+                    log.warn("Cannot resolve link: {}#{}", link.file, link.fragment);
+                    offset = 0;
+                }
+                byte[] digits = String.format("%010d", offset).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(digits, 0, text, link.offset, digits.length);
+            }
+        }
+    }
+    
+    static class Link {
+        
+        final String file;
+        final String fragment;
+        int offset = -1;
+        
+        Link(String file, String fragment) {
+            this.file = file;
+            this.fragment = fragment;
+        }
+    }
+}
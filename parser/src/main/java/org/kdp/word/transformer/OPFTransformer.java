@@ -20,24 +20,32 @@
 package org.kdp.word.transformer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
 import org.jdom2.Namespace;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.EpubPackager;
 import org.kdp.word.Options;
 import org.kdp.word.Parser;
 import org.kdp.word.Transformer;
+import org.kdp.word.transformer.FootnodeTransformer.Endnotes;
+import org.kdp.word.transformer.ImageTransformer.Image;
+import org.kdp.word.transformer.ImageTransformer.Images;
 import org.kdp.word.transformer.SectionTransformer.Section;
 import org.kdp.word.transformer.SectionTransformer.Sections;
 import org.kdp.word.utils.IOUtils;
 import org.kdp.word.utils.IllegalStateAssertion;
 import org.kdp.word.utils.JDOMUtils;
+import org.kdp.word.utils.XHTMLSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -117,6 +125,21 @@ public class OPFTransformer implements Transformer {
         item.getAttributes().add(factory.attribute("media-type", imgtype));
         manifest.getChildren().add(item);
 
+        // Images
+        Images images = context.getAttribute(Images.class);
+        if (images != null) {
+            int index = 1;
+            for (Image image : images.await()) {
+                if (!image.href.equals(imgsrc)) {
+                    item = factory.element("item");
+                    item.setAttribute("id", "Image" + index++);
+                    item.setAttribute("href", image.href);
+                    item.setAttribute("media-type", image.mediaType);
+                    manifest.getChildren().add(item);
+                }
+            }
+        }
+
         // Write sections
         Sections sections = context.getAttribute(Sections.class);
         if (sections != null) {
@@ -140,6 +163,17 @@ public class OPFTransformer implements Transformer {
         item.setAttribute("href", targetPath.toString());
         item.setAttribute("media-type", "application/xhtml+xml");
         manifest.getChildren().add(item);
+
+        // Write Endnotes
+        Endnotes endnotes = context.getAttribute(Endnotes.class);
+        if (endnotes != null) {
+            item = factory.element("item");
+            item.setAttribute("id", endnotes.name);
+            targetPath = IOUtils.bookRelative(context, endnotes.target);
+            item.setAttribute("href", targetPath.toString());
+            item.setAttribute("media-type", "application/xhtml+xml");
+            manifest.getChildren().add(item);
+        }
     }
 
     private void processSpine(Context context, Element opf) {
@@ -165,9 +199,17 @@ public class OPFTransformer implements Transformer {
         itemref = factory.element("itemref");
         itemref.setAttribute("idref", "Content");
         spine.getChildren().add(itemref);
+
+        // Endnotes
+        Endnotes endnotes = context.getAttribute(Endnotes.class);
+        if (endnotes != null) {
+            itemref = factory.element("itemref");
+            itemref.setAttribute("idref", endnotes.name);
+            spine.getChildren().add(itemref);
+        }
     }
     
-    private void writeOPFDocument(Context context, Document doc) {
+    private void writeOPFDocument(Context context, final Document doc) {
         Options options = context.getOptions();
         Path basedir = context.getBasedir();
         Path filePath = options.getOpfTarget();
@@ -177,20 +219,63 @@ public class OPFTransformer implements Transformer {
             filePath = options.getBookDir().resolve(filename);
         }
         try {
+            EpubPackager packager = context.getAttribute(EpubPackager.class);
+            if (packager != null) {
+                packageOPFDocument(context, packager, doc, basedir.resolve(filePath));
+                return;
+            }
             log.info("Writing OPF: {}", filePath);
-            File outfile = basedir.resolve(filePath).toFile();
-            outfile.getParentFile().mkdirs();
-            FileOutputStream fos = new FileOutputStream(outfile);
-            
-            XMLOutputter xo = new XMLOutputter();
-            Format format = Format.getPrettyFormat();
-            xo.setFormat(format.setOmitDeclaration(false));
-            format.setEncoding("UTF-8");
-            xo.output(doc, fos);
-            
-            fos.close();
+            context.getAttribute(BuildManifest.class).write(basedir.resolve(filePath), new EpubPackager.EntryWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    XHTMLSerializer.forXML("UTF-8", true).write(doc, Channels.newChannel(out));
+                }
+            });
         } catch (IOException ex) {
             throw new IllegalStateException("Cannot write OPF file: " + filePath, ex);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Add the OPF document and the manifest files that exist on disk to the EPUB. 
+     * Manifest hrefs are relative to the book dir, so the OPF goes to the EPUB root 
+     * when the target is not in the book dir. The content and endnotes documents are
+     * generated by this run, so a file left in the book dir by an earlier run is not used.
+     */
+    private void packageOPFDocument(final Context context, EpubPackager packager, final Document doc, Path target) throws IOException {
+        Path bookDir = context.getOptions().getBookDir();
+        Path relative = target.startsWith(bookDir) ? bookDir.relativize(target) : target.getFileName();
+        Set<String> generated = new HashSet<>();
+        generated.add(EpubPackager.getEntryName(IOUtils.bookRelative(context, context.getTarget())));
+        Endnotes endnotes = context.getAttribute(Endnotes.class);
+        if (endnotes != null) {
+            generated.add(EpubPackager.getEntryName(IOUtils.bookRelative(context, endnotes.target)));
+        }
+        Element manifest = JDOMUtils.findElement(doc.getRootElement(), "manifest");
+        for (Element item : manifest.getChildren()) {
+            String href = item.getAttributeValue("href");
+            if (href == null) {
+                continue;
+            }
+            String name = EpubPackager.getEntryName(Paths.get(href));
+            if (generated.contains(name) || packager.hasEntry(name)) {
+                continue;
+            }
+            Path file = bookDir.resolve(href);
+            if (!file.toFile().isFile()) {
+                file = context.getBasedir().resolve(href);
+            }
+            if (file.toFile().isFile()) {
+                packager.addFile(name, file);
+            } else {
+                log.warn("Cannot find manifest item: {}", href);
+            }
+        }
+        packager.addPackage(EpubPackager.getEntryName(relative), new EpubPackager.EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                XHTMLSerializer.forXML("UTF-8", true).write(doc, Channels.newChannel(out));
+            }
+        });
+    }
+}
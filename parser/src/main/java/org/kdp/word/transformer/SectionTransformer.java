@@ -19,37 +19,76 @@
  */
 package org.kdp.word.transformer;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jdom2.Attribute;
-import org.jdom2.Document;
+import org.jdom2.Comment;
+import org.jdom2.Content;
 import org.jdom2.Element;
-import org.jdom2.JDOMFactory;
 import org.jdom2.Parent;
-import org.kdp.word.Transformer;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.EpubPackager;
+import org.kdp.word.Parser;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
+import org.kdp.word.transformer.FootnodeTransformer.Endnotes;
 import org.kdp.word.utils.IOUtils;
+import org.kdp.word.utils.IllegalStateAssertion;
 import org.kdp.word.utils.JDOMUtils;
+import org.kdp.word.utils.XHTMLSerializer;
 
 /**
  * Transforms the source into multiple section files
  */
-public class SectionTransformer implements Transformer {
+public class SectionTransformer implements VisitingTransformer {
     
+    static final String SHELL_MARKER = "word2mobi:section";
+    
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        final SectionElements elements = new SectionElements();
+        context.putAttribute(SectionElements.class, elements);
+        context.putAttribute(Sections.class, new Sections());
+        traversal.addVisitor("div", new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                if (getSectionName(element) != null && !isNested(element)) {
+                    elements.add(element);
+                }
+            }
+            private boolean isNested(Element element) {
+                Element last = elements.isEmpty() ? null : elements.get(elements.size() - 1);
+                for (Element el = element.getParentElement(); last != null && el != null; el = el.getParentElement()) {
+                    if (el == last) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
     @Override
     public void transform(Context context) {
-        JDOMFactory factory = context.getJDOMFactory();
+        Sections sections = context.getAttribute(Sections.class);
+        if (sections == null)
+            return;
         
-        Sections sections = new Sections();
-        context.putAttribute(Sections.class, sections);
-        
-        Element root = context.getSourceRoot();
-        for (Element el : root.getChildren()) {
-            findWordSections(context, sections, el);
+        for (Element el : context.getAttribute(SectionElements.class)) {
+            sections.add(new Section(context, getSectionName(el), el));
         }
 
         boolean navfound = false;
@@ -67,36 +106,151 @@ public class SectionTransformer implements Transformer {
             Element element = section.element;
             Parent parent = element.getParent();
             parent.removeContent(element);
-            
-            // Build the target document 
-            Element rootClone = root.clone();
-            Element bodyClone = JDOMUtils.findElement(rootClone, "body");
-            bodyClone.removeContent();
-            bodyClone.addContent(element.clone());
-            
-            // Write the section document
-            Document doc = factory.document(rootClone);
-            File outfile = section.target.toFile();
-            try {
-                outfile.getParentFile().mkdirs();
-                FileOutputStream fos = new FileOutputStream(outfile);
-                IOUtils.writeDocument(context, doc, fos);
-                fos.close();
-            } catch (IOException ex) {
-                throw new IllegalStateException(ex);
+        }
+        
+        // Write the section and endnotes documents
+        List<Section> targets = new ArrayList<>(sections);
+        Endnotes endnotes = context.getAttribute(Endnotes.class);
+        if (endnotes != null) {
+            endnotes.resolveBackrefs(context, sections);
+            targets.add(endnotes);
+        }
+        if (!targets.isEmpty()) {
+            Shell shell = buildShell(context);
+            EpubPackager packager = context.getAttribute(EpubPackager.class);
+            int parallelism = getParallelism(context);
+            if (parallelism > 1 && targets.size() > 1) {
+                writeSectionsConcurrently(context, shell, targets, parallelism, packager);
+            } else {
+                for (Section section : targets) {
+                    if (packager != null) {
+                        packageSection(context, packager, section, serializeSection(context, shell, section));
+                    } else {
+                        writeSection(context, shell, section);
+                    }
+                }
             }
         }
     }
 
-    private void findWordSections(Context context, Sections sections, Element el) {
-        String sectionName = getSectionName(el);
-        if (sectionName != null) {
-            Section section = new Section(context, sectionName, el);
-            sections.add(section);
-        } else {
-            for (Element ch : el.getChildren()) {
-                findWordSections(context, sections, ch);
+    /**
+     * Write the detached sections on a worker pool. Sections are independent 
+     * subtrees, so the output is the same as for the sequential run. Packaged 
+     * sections are added in document order.
+     */
+    private void writeSectionsConcurrently(final Context context, final Shell shell, List<Section> targets, int parallelism, final EpubPackager packager) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()));
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (final Section section : targets) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        if (packager != null) {
+                            return serializeSection(context, shell, section);
+                        }
+                        writeSection(context, shell, section);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                byte[] bytes = futures.get(i).get();
+                if (packager != null) {
+                    packageSection(context, packager, targets.get(i), bytes);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int getParallelism(Context context) {
+        String value = context.getParser().getProperty(Parser.PROPERTY_SECTION_PARALLELISM);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : 1;
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("Invalid " + Parser.PROPERTY_SECTION_PARALLELISM + ": " + value, ex);
+        }
+    }
+
+    /**
+     * Serialize the source document with an empty body once and split it 
+     * into the part before and after the body content
+     */
+    private Shell buildShell(Context context) {
+        Element root = context.getSourceRoot();
+        Element body = context.getElementIndex().findElement("body");
+        IllegalStateAssertion.assertNotNull(body, "Cannot find body element");
+        List<Content> content = body.removeContent();
+        Comment marker = context.getJDOMFactory().comment(SHELL_MARKER);
+        body.addContent(marker);
+        try {
+            XHTMLSerializer serializer = XHTMLSerializer.forContext(context);
+            String result = serializer.toString(root.getDocument());
+            String token = serializer.toString(marker);
+            int index = result.indexOf(token);
+            IllegalStateAssertion.assertTrue(index > 0, "Cannot find section marker");
+            int depth = 1;
+            for (Element el = body; el != root; el = el.getParentElement()) {
+                depth++;
+            }
+            return new Shell(result.substring(0, index), result.substring(index + token.length()), depth);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            body.removeContent(marker);
+            body.addContent(content);
+        }
+    }
+
+    /**
+     * Write the section element between the shell prefix and suffix, unless the file is unchanged
+     */
+    private void writeSection(final Context context, final Shell shell, final Section section) {
+        try {
+            BuildManifest manifest = context.getAttribute(BuildManifest.class);
+            manifest.write(section.target, new EpubPackager.EntryWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    serializeSection(context, shell, section, out);
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private byte[] serializeSection(Context context, Shell shell, Section section) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializeSection(context, shell, section, out);
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void serializeSection(Context context, Shell shell, Section section, OutputStream out) throws IOException {
+        XHTMLSerializer serializer = XHTMLSerializer.forContext(context);
+        serializer.write(shell.prefix, section.element, shell.depth, shell.suffix, Channels.newChannel(out));
+    }
+
+    private void packageSection(Context context, EpubPackager packager, Section section, byte[] bytes) {
+        try {
+            String name = EpubPackager.getEntryName(IOUtils.bookRelative(context, section.target));
+            packager.addEntry(name, bytes);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         }
     }
 
@@ -112,6 +266,21 @@ public class SectionTransformer implements Transformer {
         return name.startsWith("WordSection") ? name : null;
     }
     
+    static class Shell {
+        final String prefix;
+        final String suffix;
+        final int depth;
+        Shell(String prefix, String suffix, int depth) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.depth = depth;
+        }
+    }
+    
+    @SuppressWarnings("serial")
+    static class SectionElements extends ArrayList<Element> {
+    }
+    
     @SuppressWarnings("serial")
     static class Sections extends ArrayList<Section> {
     }
@@ -20,39 +20,45 @@
 package org.kdp.word.transformer;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.ElementIndex;
+import org.kdp.word.EpubPackager;
 import org.kdp.word.Options;
 import org.kdp.word.Parser;
 import org.kdp.word.Transformer;
+import org.kdp.word.utils.CSSParser;
+import org.kdp.word.utils.IOUtils;
 import org.kdp.word.utils.IllegalStateAssertion;
-import org.kdp.word.utils.JDOMUtils;
 
 /**
  * Transform style definitions
  */
 public class StyleTransformer implements Transformer {
 
-    private List<Replacement> replacements;
-    private Set<String> whitelist = new HashSet<>();
-    
+    // identity marker for class values that are removed
+    private static final Map<Path, CachedStyles> stylesCache = new ConcurrentHashMap<>();
+
     @Override
     public void transform(Context context) {
         Parser parser = context.getParser();
@@ -62,36 +68,48 @@ public class StyleTransformer implements Transformer {
             return;
         
         // Parse the external styles
-        replacements = parseStyleReplacements(context);
-        parseExternalStyles(context, cssPath);
+        List<Replacement> replacements = parseStyleReplacements(context);
+        context.putAttribute(Styles.class, parseExternalStyles(context, cssPath));
         
+        Set<String> whitelist = new HashSet<>();
         String wltoks = parser.getProperty(Parser.PROPERTY_STYLE_REPLACE_WHITELIST);
         if (wltoks != null) {
             for (String tok : wltoks.split(",")) {
                 whitelist.add(tok.trim());
             }
         }
+        StyleRules rules = new StyleRules(replacements, whitelist);
         
         // Remove existing style definitions
         Element root = context.getSourceRoot();
-        Element elStyle = JDOMUtils.findElement(root, "style");
+        ElementIndex index = context.getElementIndex();
+        Element elStyle = index.findElement("style");
         if (elStyle != null) {
             elStyle.getParentElement().removeContent(elStyle);
         }
         
-        // Copy the CSS to the book dir
+        // Copy the CSS to the book dir at the end, after generated rules have been appended
         Path cssName = cssPath.getFileName();
-        try {
-            Path bookDir = options.getBookDir();
-            Path cssBook = bookDir.resolve(cssName);
-            bookDir.toFile().mkdirs();
-            Files.copy(cssPath, cssBook, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException ex) {
-            throw new IllegalStateException(ex);
+        Path cssBook = options.getBookDir().resolve(cssName);
+        final StyleSheet stylesheet = new StyleSheet(cssBook);
+        final Path source = cssPath;
+        EpubPackager.EntryWriter writer = new EpubPackager.EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                Files.copy(source, out);
+                out.write(stylesheet.getGenerated().getBytes(StandardCharsets.UTF_8));
+            }
+        };
+        EpubPackager packager = context.getAttribute(EpubPackager.class);
+        if (packager != null) {
+            packager.addDeferredEntry(EpubPackager.getEntryName(IOUtils.bookRelative(context, cssBook)), writer);
+        } else {
+            context.getAttribute(BuildManifest.class).addDeferred(cssBook, writer);
         }
+        context.putAttribute(StyleSheet.class, stylesheet);
         
         // Add reference to external styles
-        Element elHead = JDOMUtils.findElement(root, "head");
+        Element elHead = index.findElement("head");
         if (elHead != null) {
             JDOMFactory factory = context.getJDOMFactory();
             Element elLink = factory.element("link");
@@ -99,8 +117,9 @@ public class StyleTransformer implements Transformer {
             elLink.setAttribute("type", "text/css");
             elLink.setAttribute("href", cssName.toString());
             elHead.addContent(elLink);
+            index.add(elLink);
             
-            transformStyles(context, root);
+            transformStyles(context, rules, root);
         }
     }
 
@@ -122,57 +141,75 @@ public class StyleTransformer implements Transformer {
         return result;
     }
 
+    /**
+     * Get the parsed external styles. Parsed stylesheets are cached by path and modification time.
+     */
     private Styles parseExternalStyles(Context context, Path cssPath) {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
         try {
-            BufferedReader br = new BufferedReader(new FileReader(cssPath.toFile()));
+            Path key = cssPath.toAbsolutePath().normalize();
+            FileTime modified = Files.getLastModifiedTime(key);
+            CachedStyles cached = stylesCache.get(key);
+            if (cached != null && cached.modified.equals(modified)) {
+                return cached.styles;
+            }
+            final Styles result = new Styles();
+            Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(key), StandardCharsets.UTF_8));
             try {
-                String line = br.readLine();
-                while (line != null) {
-                    line = line.trim();
-                    if (line.length() > 0) {
-                        pw.print(line);
+                CSSParser.parse(reader, new CSSParser.Handler() {
+                    @Override
+                    public void rule(List<String> selectors, Map<String, String> declarations) {
+                        result.add(new Style(selectors, declarations));
                     }
-                    line = br.readLine();
-                }
+
+                    @Override
+                    public void atRule(String name, String prelude) {
+                        // not used
+                    }
+                });
             } finally {
-                br.close();
+                reader.close();
             }
+            stylesCache.put(key, new CachedStyles(modified, result));
+            return result;
         } catch (IOException ex) {
-            throw new IllegalStateException(ex);
-        }
-        
-        Styles result = new Styles();
-        String allstyles = sw.toString();
-        String[] tokens = allstyles.split("[}{]");
-        for (int i = 0; i < tokens.length / 2; i += 2) {
-            String keys = tokens[i];
-            String atts = tokens[i + 1];
-            Style style = new Style(keys);
-            style.addAttributes(atts);
-            result.add(style);
+            throw new IllegalStateException("Cannot parse CSS: " + cssPath, ex);
         }
-        return result;
     }
 
-    private void transformStyles(Context context, Element element) {
+    private void transformStyles(Context context, StyleRules rules, Element element) {
         Attribute attClass = element.getAttribute("class");
         if (attClass != null) {
-            classStyleReplace(context, element, attClass);
+            classStyleReplace(context, rules, element, attClass);
         }
         for (Element ch : element.getChildren()) {
-            transformStyles(context, ch);
+            transformStyles(context, rules, ch);
         }
     }
 
-    private void classStyleReplace(Context context, Element element, Attribute attClass) {
-        String value = null;
-        String attname = attClass.getName();
+    private void classStyleReplace(Context context, StyleRules rules, Element element, Attribute attClass) {
         String attvalue = attClass.getValue();
-        for (Replacement rep : replacements) {
+        ResolvedClass resolved = rules.resolved.get(attvalue);
+        if (resolved == null) {
+            String value = resolveClass(rules, attClass.getName(), attvalue);
+            resolved = value != null ? new ResolvedClass(value) : ResolvedClass.REMOVE;
+            rules.resolved.put(attvalue, resolved);
+        }
+        if (resolved == ResolvedClass.REMOVE) {
+            element.removeAttribute(attClass);
+        } else if (!resolved.value.equals(attvalue)) {
+            attClass.setValue(resolved.value);
+            context.getElementIndex().update(element);
+        }
+    }
+
+    /**
+     * Get the replacement for the given attribute value, or null if the attribute should be removed
+     */
+    private String resolveClass(StyleRules rules, String attname, String attvalue) {
+        String value = null;
+        for (Replacement rep : rules.replacements) {
             if (attname.equals(rep.attname)) {
-                if (isWhitelisted(attvalue)) {
+                if (isWhitelisted(rules, attvalue)) {
                     value = attvalue;
                 } else if (rep.pattern.matcher(attvalue).matches()) {
                     value = rep.value;
@@ -180,15 +217,11 @@ public class StyleTransformer implements Transformer {
                 }
             }
         }
-        if (value != null) {
-            attClass.setValue(value);
-        } else {
-            element.removeAttribute(attClass);
-        }
+        return value;
     }
 
-    private boolean isWhitelisted(String attvalue) {
-        for (String substr : whitelist) {
+    private boolean isWhitelisted(StyleRules rules, String attvalue) {
+        for (String substr : rules.whitelist) {
             if (attvalue.contains(substr)) {
                 return true;
             }
@@ -196,6 +229,27 @@ public class StyleTransformer implements Transformer {
         return false;
     }
 
+    static class StyleRules {
+        final List<Replacement> replacements;
+        final Set<String> whitelist;
+        final Map<String, ResolvedClass> resolved = new HashMap<>();
+        StyleRules(List<Replacement> replacements, Set<String> whitelist) {
+            this.replacements = replacements;
+            this.whitelist = whitelist;
+        }
+    }
+
+    /**
+     * The replacement of a class value, or the marker for a class attribute that is removed
+     */
+    static final class ResolvedClass {
+        static final ResolvedClass REMOVE = new ResolvedClass(null);
+        final String value;
+        ResolvedClass(String value) {
+            this.value = value;
+        }
+    }
+
     class Replacement {
         final String attname;
         final Pattern pattern;
@@ -207,8 +261,42 @@ public class StyleTransformer implements Transformer {
         }
     }
     
+    /**
+     * The stylesheet copied to the book dir
+     */
+    static class StyleSheet {
+        final Path path;
+        private final StringBuilder generated = new StringBuilder();
+        StyleSheet(Path path) {
+            this.path = path;
+        }
+        
+        /**
+         * Append rules that are written after the external styles
+         */
+        synchronized void append(String css) {
+            generated.append(css);
+        }
+        
+        synchronized String getGenerated() {
+            return generated.toString();
+        }
+    }
+    
+    static class CachedStyles {
+        final FileTime modified;
+        final Styles styles;
+        CachedStyles(FileTime modified, Styles styles) {
+            this.modified = modified;
+            this.styles = styles;
+        }
+    }
+    
+    /**
+     * The parsed rules of the external stylesheet
+     */
     @SuppressWarnings("serial")
-    class Styles extends LinkedHashSet<Style> {
+    static class Styles extends ArrayList<Style> {
         
         Style findStyle(String sname) {
             for (Style style : this) {
@@ -220,24 +308,13 @@ public class StyleTransformer implements Transformer {
         }
     }
     
-    class Style {
-        final Set<String> names = new LinkedHashSet<>();;
-        final Map<String, String> attributes = new LinkedHashMap<>();
+    static class Style {
+        final Set<String> names;
+        final Map<String, String> attributes;
 
-        Style(String namelist) {
-            for (String name : namelist.split(",")) {
-                names.add(name.trim());
-            }
-        }
-
-        void addAttributes(String values) {
-            for (String keyval : values.split(";")) {
-                if (keyval.trim().length() > 0) {
-                    String[] tuple = keyval.split(":");
-                    IllegalStateAssertion.assertEquals(2, tuple.length, "Illegal style attribute: " + values);
-                    attributes.put(tuple[0].trim(), tuple[1].trim());
-                }
-            }
+        Style(List<String> names, Map<String, String> attributes) {
+            this.names = new LinkedHashSet<>(names);
+            this.attributes = attributes;
         }
 
         @Override
@@ -245,4 +322,4 @@ public class StyleTransformer implements Transformer {
             return "Style [name=" + names + ", attributes=" + attributes + "]";
         }
     }
-}
\ No newline at end of file
+}
@@ -20,86 +20,192 @@
 package org.kdp.word.transformer;
 
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 import org.jdom2.JDOMFactory;
-import org.kdp.word.Transformer;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
 import org.kdp.word.utils.IOUtils;
 import org.kdp.word.utils.IllegalStateAssertion;
-import org.kdp.word.utils.JDOMUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Add an anchor for each 'MsoToc1' style element 
+ * Add an anchor for each 'MsoTocN' style element 
+ * 
+ * TOC entries are resolved against a map of heading text to anchor name, 
+ * which is built once from the h1..h6 elements of the document. Level one entries 
+ * must resolve, deeper entries without a matching heading are left out of the TOC.
  */
-public class TOCTransformer implements Transformer {
+public class TOCTransformer implements VisitingTransformer {
+    
+    private static Logger log = LoggerFactory.getLogger(TOCTransformer.class);
+    
+    static final int MAX_HEADING_LEVEL = 6;
     
+    @Override
+    public void registerVisitors(Context context, Traversal traversal) {
+        final TOCEntries entries = new TOCEntries();
+        context.putAttribute(TOCEntries.class, entries);
+        traversal.addVisitor("p", new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                if (getTocLevel(element) > 0) {
+                    entries.entries.add(element);
+                }
+            }
+        });
+        Visitor headingVisitor = new Visitor() {
+            @Override
+            public void visit(Context context, Element element) {
+                entries.headings.add(element);
+            }
+        };
+        for (int level = 1; level <= MAX_HEADING_LEVEL; level++) {
+            traversal.addVisitor("h" + level, headingVisitor);
+        }
+    }
+
     @Override
     public void transform(Context context) {
         JDOMFactory factory = context.getJDOMFactory();
         
-        Element root = context.getSourceRoot();
-        for (Element el : root.getChildren()) {
-            transformInternal(context, el);
+        TOCEntries entries = context.getAttribute(TOCEntries.class);
+        if (entries == null || entries.entries.isEmpty())
+            return;
+        
+        AnchorMap anchors = buildAnchorMap(entries.headings);
+        Set<Element> resolved = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        for (Element el : entries.entries) {
+            if (transformInternal(context, anchors, el)) {
+                resolved.add(el);
+            }
+        }
+        if (resolved.isEmpty())
+            return;
+        
+        Element first = null;
+        for (Element el : entries.entries) {
+            if (resolved.contains(el)) {
+                first = el;
+                break;
+            }
         }
+        Element parent = first.getParentElement();
+        List<Element> children = parent.getChildren();
+        
+        // Add the nav element
+        Element nav = factory.element("nav");
+        nav.getAttributes().add(factory.attribute("type", "toc", OPFTransformer.NS_OPF));
+        int index = children.indexOf(first);
+        children.add(index, nav);
+        
+        // Add the ol element
+        Element ol = factory.element("ol");
+        ol.setAttribute("class", "Toc");
+        nav.getChildren().add(ol);
         
-        Element first = JDOMUtils.findElement(root, "p", "class", "MsoToc1");
-        if (first != null) {
-            Element parent = first.getParentElement();
-            List<Element> children = parent.getChildren();
-            
-            // Add the nav element
-            Element nav = factory.element("nav");
-            nav.getAttributes().add(factory.attribute("type", "toc", OPFTransformer.NS_OPF));
-            int index = children.indexOf(first);
-            children.add(index, nav);
-            
-            // Add the ol element
-            Element ol = factory.element("ol");
-            ol.setAttribute("class", "Toc");
-            nav.getChildren().add(ol);
-            
-            Iterator<Element> itel = children.iterator();
-            while (itel.hasNext()) {
-                Element el = itel.next();
-                if (JDOMUtils.isElement(el, "p", "class", "MsoToc1")) {
-                    Element li = factory.element("li");
-                    li.getAttributes().add(factory.attribute("class", "MsoToc1"));
-                    li.addContent(el.cloneContent());
-                    ol.getChildren().add(li);
-                    itel.remove();
+        // Nest deeper levels in the last item of the enclosing level
+        Stack<Element> levels = new Stack<>();
+        levels.push(ol);
+        Iterator<Element> itel = children.iterator();
+        while (itel.hasNext()) {
+            Element el = itel.next();
+            int level = getTocLevel(el);
+            if (level > 0 && resolved.contains(el)) {
+                while (levels.size() > level) {
+                    levels.pop();
                 }
+                while (levels.size() < level) {
+                    List<Element> items = levels.peek().getChildren();
+                    if (items.isEmpty()) {
+                        break;
+                    }
+                    Element subol = factory.element("ol");
+                    subol.setAttribute("class", "Toc");
+                    items.get(items.size() - 1).getChildren().add(subol);
+                    levels.push(subol);
+                }
+                Element li = factory.element("li");
+                li.getAttributes().add(factory.attribute("class", "MsoToc" + level));
+                li.addContent(el.removeContent());
+                levels.peek().getChildren().add(li);
+                itel.remove();
             }
         }
+        context.getElementIndex().add(nav);
     }
 
-    private void transformInternal(Context context, Element el) {
+    /**
+     * Replace the entry content with a link to the heading anchor. 
+     * Returns false for an unresolved entry below level one.
+     */
+    private boolean transformInternal(Context context, AnchorMap anchors, Element el) {
         JDOMFactory factory = context.getJDOMFactory();
-        Element root = context.getSourceRoot();
-        if (JDOMUtils.isElement(el, "p", "class", "MsoToc1")) {
-            Element tocel = getFirstTextElement(el);
-            String tocname = tocel.getText();
-            int dotidx = tocname.indexOf("...");
-            if (dotidx > 0) {
-                tocname = tocname.substring(0, dotidx).trim();
+        Element tocel = getFirstTextElement(el);
+        String tocname = tocel.getText();
+        int dotidx = tocname.indexOf("...");
+        if (dotidx > 0) {
+            tocname = tocname.substring(0, dotidx).trim();
+        }
+        int level = getTocLevel(el);
+        String aname = anchors.find(level, tocname);
+        if (aname == null && level > 1) {
+            log.warn("Cannot find anchor for: {}", tocname);
+            return false;
+        }
+        IllegalStateAssertion.assertNotNull(aname, "Cannot find anchor for: " + tocname);
+        Element anchor = factory.element("a");
+        Path targetPath = IOUtils.bookRelative(context, context.getTarget());
+        anchor.getAttributes().add(factory.attribute("href", targetPath + "#" + aname));
+        anchor.setText(tocname);
+        el.getChildren().clear();
+        el.setText(null);
+        el.getChildren().add(anchor);
+        return true;
+    }
+
+    private AnchorMap buildAnchorMap(List<Element> headings) {
+        AnchorMap result = new AnchorMap();
+        for (Element el : headings) {
+            String aname = getAnchorName(el);
+            if (aname != null) {
+                String text = normalizeWhitespace(getFirstTextElement(el).getText());
+                int level = el.getName().charAt(1) - '0';
+                result.put(level, text, aname);
             }
-            String aname = findAnchorName(root, tocname);
-            IllegalStateAssertion.assertNotNull(aname, "Cannot find anchor for: " + tocname);
-            Element anchor = factory.element("a");
-            Path targetPath = IOUtils.bookRelative(context, context.getTarget());
-            anchor.getAttributes().add(factory.attribute("href", targetPath + "#" + aname));
-            anchor.setText(tocname);
-            el.getChildren().clear();
-            el.setText(null);
-            el.getChildren().add(anchor);
-        } else {
-            for (Element ch : el.getChildren()) {
-                transformInternal(context, ch);
+        }
+        return result;
+    }
+
+    private int getTocLevel(Element el) {
+        if (!"p".equals(el.getName())) {
+            return 0;
+        }
+        String attval = el.getAttributeValue("class");
+        if (attval == null || !attval.startsWith("MsoToc") || attval.length() == 6) {
+            return 0;
+        }
+        int level = 0;
+        for (int i = 6; i < attval.length(); i++) {
+            char ch = attval.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return 0;
             }
+            level = level * 10 + (ch - '0');
         }
+        return level;
     }
 
     private Element getFirstTextElement(Element el) {
@@ -112,28 +218,25 @@ public class TOCTransformer implements Transformer {
         return el;
     }
 
-    private String findAnchorName(Element el, String targetName) {
-        String result = null;
-        if ("h1".equals(el.getName())) {
-            String h1Name = getFirstTextElement(el).getText();
-            if (equalsIgnoreWhitespace(targetName, h1Name)) {
-                result = getAnchorName(el);
-            }
-        } else {
-            for (Element ch : el.getChildren()) {
-                result = findAnchorName(ch, targetName);
-                if (result != null) {
-                    break;
+    /**
+     * Trim and collapse whitespace runs to a single space
+     */
+    private String normalizeWhitespace(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (Character.isWhitespace(ch) || ch == '\u00a0') {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
                 }
+                sb.append(ch);
             }
         }
-        return result;
-    }
-    
-    private boolean equalsIgnoreWhitespace(String target, String candidate) {
-        List<String> tlist = Arrays.asList(target.split("[\\s]"));
-        List<String> clist = Arrays.asList(candidate.split("[\\s]"));
-        return tlist.equals(clist);
+        return sb.toString();
     }
 
     private String getAnchorName(Element el) {
@@ -151,4 +254,40 @@ public class TOCTransformer implements Transformer {
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Map the normalized heading text to the anchor name, both per level and for any level. 
+     * The first heading with a given text wins.
+     */
+    private class AnchorMap {
+        
+        private final Map<Integer, Map<String, String>> byLevel = new HashMap<>();
+        private final Map<String, String> anyLevel = new HashMap<>();
+        
+        void put(int level, String text, String aname) {
+            Map<String, String> map = byLevel.get(level);
+            if (map == null) {
+                map = new HashMap<>();
+                byLevel.put(level, map);
+            }
+            if (!map.containsKey(text)) {
+                map.put(text, aname);
+            }
+            if (!anyLevel.containsKey(text)) {
+                anyLevel.put(text, aname);
+            }
+        }
+        
+        String find(int level, String targetName) {
+            String text = normalizeWhitespace(targetName);
+            Map<String, String> map = byLevel.get(level);
+            String result = map != null ? map.get(text) : null;
+            return result != null ? result : anyLevel.get(text);
+        }
+    }
+
+    static class TOCEntries {
+        final List<Element> entries = new ArrayList<>();
+        final List<Element> headings = new ArrayList<>();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A streaming CSS parser that reports style rules and statement at-rules.
+ * 
+ * Comments are skipped, strings and parentheses are respected when splitting 
+ * selector lists and declarations. Rules inside @media, @supports and @document 
+ * are reported like top level rules; @font-face and @page are reported with the 
+ * at-keyword as selector. Other block at-rules such as @keyframes are skipped.
+ */
+public final class CSSParser {
+
+    static final Set<String> NESTED_AT_RULES = new HashSet<>(Arrays.asList("media", "supports", "document", "-moz-document"));
+    static final Set<String> DECLARATION_AT_RULES = new HashSet<>(Arrays.asList("font-face", "page"));
+    
+    public interface Handler {
+        
+        /**
+         * A style rule with its selectors and declarations in source order
+         */
+        void rule(List<String> selectors, Map<String, String> declarations);
+        
+        /**
+         * An at-rule without a block, like @charset or @import
+         */
+        void atRule(String name, String prelude);
+    }
+    
+    private final Reader reader;
+    private final Handler handler;
+    private int pushback = -1;
+
+    private CSSParser(Reader reader, Handler handler) {
+        this.reader = reader;
+        this.handler = handler;
+    }
+
+    public static void parse(Reader reader, Handler handler) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(reader, "reader");
+        IllegalArgumentAssertion.assertNotNull(handler, "handler");
+        new CSSParser(reader, handler).parseRules(false);
+    }
+
+    /**
+     * Parse a declaration list like the content of a style attribute. Property names are lower case.
+     */
+    public static Map<String, String> parseDeclarations(String text) {
+        try {
+            CSSParser parser = new CSSParser(new StringReader(text), null);
+            return parser.parseDeclarations();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Parse rules until the end of input or the close of the enclosing block
+     */
+    private void parseRules(boolean nested) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        while (true) {
+            buffer.setLength(0);
+            int stop = readUntil(buffer, "{;}");
+            String prelude = buffer.toString().trim();
+            if (stop == ';') {
+                if (prelude.startsWith("@")) {
+                    String name = atKeyword(prelude);
+                    handler.atRule(name, prelude.substring(name.length() + 1).trim());
+                }
+            } else if (stop == '{') {
+                if (prelude.startsWith("@")) {
+                    String name = atKeyword(prelude);
+                    String lower = name.toLowerCase();
+                    if (NESTED_AT_RULES.contains(lower)) {
+                        parseRules(true);
+                    } else if (DECLARATION_AT_RULES.contains(lower)) {
+                        handler.rule(Arrays.asList(prelude), parseDeclarations());
+                    } else {
+                        skipBlock();
+                    }
+                } else {
+                    Map<String, String> declarations = parseDeclarations();
+                    List<String> selectors = splitSelectors(prelude);
+                    if (!selectors.isEmpty()) {
+                        handler.rule(selectors, declarations);
+                    }
+                }
+            } else if (stop < 0 || nested) {
+                // end of input or end of the enclosing block
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parse declarations up to the close of the block or the end of input
+     */
+    private Map<String, String> parseDeclarations() throws IOException {
+        Map<String, String> result = new LinkedHashMap<>();
+        StringBuilder buffer = new StringBuilder();
+        while (true) {
+            buffer.setLength(0);
+            int stop = readUntil(buffer, ";{}");
+            if (stop == '{') {
+                // nested blocks are not supported in declarations
+                skipBlock();
+                continue;
+            }
+            int index = buffer.indexOf(":");
+            if (index > 0) {
+                String name = buffer.substring(0, index).trim().toLowerCase();
+                String value = collapseWhitespace(buffer.substring(index + 1));
+                if (name.length() > 0 && value.length() > 0) {
+                    // a repeated property takes the position of the last one
+                    result.remove(name);
+                    result.put(name, value);
+                }
+            }
+            if (stop != ';') {
+                return result;
+            }
+        }
+    }
+
+    private void skipBlock() throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            buffer.setLength(0);
+            int stop = readUntil(buffer, "{}");
+            if (stop == '{') {
+                depth++;
+            } else if (stop == '}') {
+                depth--;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read up to one of the stop chars outside of strings, comments and parentheses. 
+     * Returns the stop char, or -1 at the end of input.
+     */
+    private int readUntil(StringBuilder buffer, String stops) throws IOException {
+        int depth = 0;
+        int ch;
+        while ((ch = read()) >= 0) {
+            if (ch == '/') {
+                int next = read();
+                if (next == '*') {
+                    skipComment();
+                    continue;
+                }
+                unread(next);
+            } else if (ch == '"' || ch == '\'') {
+                buffer.append((char) ch);
+                readString(buffer, ch);
+                continue;
+            } else if (ch == '\\') {
+                buffer.append((char) ch);
+                int next = read();
+                if (next >= 0) {
+                    buffer.append((char) next);
+                }
+                continue;
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')' && depth > 0) {
+                depth--;
+            } else if (depth == 0 && stops.indexOf(ch) >= 0) {
+                return ch;
+            }
+            buffer.append((char) ch);
+        }
+        return -1;
+    }
+
+    private void readString(StringBuilder buffer, int quote) throws IOException {
+        int ch;
+        while ((ch = read()) >= 0) {
+            buffer.append((char) ch);
+            if (ch == '\\') {
+                int next = read();
+                if (next >= 0) {
+                    buffer.append((char) next);
+                }
+            } else if (ch == quote || ch == '\n') {
+                return;
+            }
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int prev = -1;
+        int ch;
+        while ((ch = read()) >= 0) {
+            if (prev == '*' && ch == '/') {
+                return;
+            }
+            prev = ch;
+        }
+    }
+
+    private int read() throws IOException {
+        if (pushback >= 0) {
+            int ch = pushback;
+            pushback = -1;
+            return ch;
+        }
+        return reader.read();
+    }
+
+    private void unread(int ch) {
+        pushback = ch;
+    }
+
+    private static String atKeyword(String prelude) {
+        int end = 1;
+        while (end < prelude.length() && !Character.isWhitespace(prelude.charAt(end)) && "({;\"'".indexOf(prelude.charAt(end)) < 0) {
+            end++;
+        }
+        return prelude.substring(1, end);
+    }
+
+    /**
+     * Split a selector list on top level commas
+     */
+    static List<String> splitSelectors(String prelude) {
+        List<String> result = new ArrayList<>();
+        int depth = 0;
+        int quote = 0;
+        int start = 0;
+        for (int i = 0; i < prelude.length(); i++) {
+            char ch = prelude.charAt(i);
+            if (quote != 0) {
+                if (ch == '\\') {
+                    i++;
+                } else if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '(' || ch == '[') {
+                depth++;
+            } else if ((ch == ')' || ch == ']') && depth > 0) {
+                depth--;
+            } else if (ch == ',' && depth == 0) {
+                addSelector(result, prelude.substring(start, i));
+                start = i + 1;
+            }
+        }
+        addSelector(result, prelude.substring(start));
+        return result;
+    }
+
+    private static void addSelector(List<String> result, String selector) {
+        selector = collapseWhitespace(selector);
+        if (selector.length() > 0) {
+            result.add(selector);
+        }
+    }
+
+    /**
+     * Trim and collapse whitespace runs outside of strings
+     */
+    private static String collapseWhitespace(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        boolean space = false;
+        int quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (quote != 0) {
+                result.append(ch);
+                if (ch == '\\' && i + 1 < text.length()) {
+                    result.append(text.charAt(++i));
+                } else if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                if (space) {
+                    result.append(' ');
+                    space = false;
+                }
+                result.append(ch);
+                quote = ch;
+            } else if (Character.isWhitespace(ch)) {
+                space = result.length() > 0;
+            } else {
+                if (space) {
+                    result.append(' ');
+                    space = false;
+                }
+                result.append(ch);
+            }
+        }
+        return result.toString();
+    }
+}
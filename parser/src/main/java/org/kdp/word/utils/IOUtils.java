@@ -19,41 +19,179 @@
  */
 package org.kdp.word.utils;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.jdom2.Document;
 import org.jdom2.output.EscapeStrategy;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
 import org.kdp.word.Options;
 import org.kdp.word.Parser;
 import org.kdp.word.Transformer.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class IOUtils {
 
+    private static Logger log = LoggerFactory.getLogger(IOUtils.class);
+    
+    // inputs larger than this are memory mapped
+    static final long MAPPED_INPUT_THRESHOLD = 1024 * 1024;
+    // the number of bytes searched for a meta charset declaration
+    static final int CHARSET_HEADER_SIZE = 4096;
+    
+    // charset names used by Word that Java knows by another name
+    private static final Map<String, String> CHARSET_ALIASES = new HashMap<>();
+    static {
+        CHARSET_ALIASES.put("macintosh", "x-MacRoman");
+        CHARSET_ALIASES.put("x-mac-roman", "x-MacRoman");
+    }
+    
     // hide ctor
     private IOUtils() {
     }
     
     public static void writeDocument(Context context, Document doc, OutputStream out) throws IOException {
-        Parser parser = context.getParser();
-        String outputEncoding = parser.getProperty(Parser.PROPERTY_OUTPUT_ENCODING);
-        outputEncoding = outputEncoding != null ? outputEncoding : "UTF-8";
-        String outputFormat = parser.getProperty(Parser.PROPERTY_OUTPUT_FORMAT);
-        boolean pretty = Parser.OUTPUT_FORMAT_PRETTY.equals(outputFormat);
-
-        XMLOutputter xo = new XMLOutputter();
-        Format format = pretty ? Format.getPrettyFormat() : Format.getCompactFormat();
-        format.setEncoding(outputEncoding);
-        EscapeStrategy strategy = new OutputEscapeStrategy(context, format.getEscapeStrategy());
-        format.setEscapeStrategy(strategy);
-        xo.setFormat(format.setOmitDeclaration(true));
-        xo.output(doc, out);
+        XHTMLSerializer.forContext(context).write(doc, Channels.newChannel(out));
+    }
+
+    public static void writeDocument(Context context, Document doc, Path path) throws IOException {
+        XHTMLSerializer.forContext(context).write(doc, path);
+    }
+
+    /**
+     * Open a reader on the input file. Large files are memory mapped, small ones read at once.
+     * The charset comes from a BOM or a meta charset declaration, otherwise the fallback is used.
+     */
+    public static Reader openInput(Path path, String fallback) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAPPED_INPUT_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+                buffer.flip();
+            }
+        }
+        Charset charset = detectCharset(buffer, fallback);
+        log.debug("Reading {} as {}", path, charset);
+        return new BufferedReader(new InputStreamReader(new ByteBufferInputStream(buffer), charset));
+    }
+
+    /**
+     * Detect the charset of the given input and skip a byte order mark
+     */
+    static Charset detectCharset(ByteBuffer buffer, String fallback) {
+        int pos = buffer.position();
+        int len = buffer.remaining();
+        if (len >= 3 && (buffer.get(pos) & 0xFF) == 0xEF && (buffer.get(pos + 1) & 0xFF) == 0xBB && (buffer.get(pos + 2) & 0xFF) == 0xBF) {
+            buffer.position(pos + 3);
+            return StandardCharsets.UTF_8;
+        }
+        if (len >= 2 && (buffer.get(pos) & 0xFF) == 0xFE && (buffer.get(pos + 1) & 0xFF) == 0xFF) {
+            buffer.position(pos + 2);
+            return StandardCharsets.UTF_16BE;
+        }
+        if (len >= 2 && (buffer.get(pos) & 0xFF) == 0xFF && (buffer.get(pos + 1) & 0xFF) == 0xFE) {
+            buffer.position(pos + 2);
+            return StandardCharsets.UTF_16LE;
+        }
+        byte[] bytes = new byte[Math.min(len, CHARSET_HEADER_SIZE)];
+        buffer.duplicate().get(bytes);
+        String header = new String(bytes, StandardCharsets.ISO_8859_1).toLowerCase();
+        Charset charset = toCharset(findMetaCharset(header));
+        if (charset == null) {
+            charset = toCharset(fallback);
+        }
+        return charset != null ? charset : StandardCharsets.UTF_8;
+    }
+
+    private static String findMetaCharset(String header) {
+        int index = header.indexOf("<meta");
+        while (index >= 0) {
+            int end = header.indexOf('>', index);
+            if (end < 0) {
+                break;
+            }
+            int start = header.indexOf("charset=", index);
+            if (start >= 0 && start < end) {
+                start += "charset=".length();
+                int stop = start;
+                while (stop < end && "\"'; \t\r\n/".indexOf(header.charAt(stop)) < 0) {
+                    stop++;
+                }
+                if (stop > start) {
+                    return header.substring(start, stop);
+                }
+                if (start < end && (header.charAt(start) == '"' || header.charAt(start) == '\'')) {
+                    return findQuoted(header, start, end);
+                }
+            }
+            index = header.indexOf("<meta", end);
+        }
+        return null;
+    }
+
+    private static String findQuoted(String header, int start, int end) {
+        char quote = header.charAt(start);
+        int stop = header.indexOf(quote, start + 1);
+        return stop > start + 1 && stop < end ? header.substring(start + 1, stop).trim() : null;
+    }
+
+    private static Charset toCharset(String name) {
+        if (name == null) {
+            return null;
+        }
+        String alias = CHARSET_ALIASES.get(name.toLowerCase());
+        try {
+            return Charset.forName(alias != null ? alias : name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException ex) {
+            log.warn("Unsupported charset: {}", name);
+            return null;
+        }
+    }
+
+    /**
+     * Read the content of a zip entry
+     */
+    public static byte[] readEntry(Path zipfile, String name) throws IOException {
+        try (ZipFile zip = new ZipFile(zipfile.toFile())) {
+            ZipEntry entry = zip.getEntry(name);
+            if (entry == null) {
+                throw new IOException("Cannot find " + name + " in " + zipfile);
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            }
+        }
     }
 
     public static Path bookRelative(Context context, Path targetPath) {
@@ -67,28 +205,84 @@ public final class IOUtils {
         return targetPath;
     }
 
+    /**
+     * Escapes the configured chars and those the output encoding cannot represent. 
+     * Both decisions are compiled into a bit table over the BMP, shared by encoding and config.
+     */
     static class OutputEscapeStrategy implements EscapeStrategy {
-        private final EscapeStrategy encodingStrateg;
-        private final Set<Integer> escaped = new HashSet<>();
         
-        OutputEscapeStrategy(Context context, EscapeStrategy encodingStrategy) {
-            this.encodingStrateg = encodingStrategy;
+        private static final Map<String, long[]> tables = new ConcurrentHashMap<>();
+        
+        private final long[] table;
+        
+        OutputEscapeStrategy(Context context, String encoding, EscapeStrategy encodingStrategy) {
             Parser parser = context.getParser();
             String chars = parser.getProperty(Parser.PROPERTY_ESCAPED_CHARS);
+            String key = encoding + "|" + (chars != null ? chars : "");
+            long[] compiled = tables.get(key);
+            if (compiled == null) {
+                compiled = compile(chars, encodingStrategy);
+                tables.put(key, compiled);
+            }
+            this.table = compiled;
+        }
+
+        private static long[] compile(String chars, EscapeStrategy encodingStrategy) {
+            long[] result = new long[(Character.MAX_VALUE + 1) >>> 6];
             if (chars != null) {
                 for (String hexcode : chars.split(",")) {
-                    escaped.add(Integer.decode(hexcode));
+                    int ch = Integer.decode(hexcode.trim());
+                    if (ch <= Character.MAX_VALUE) {
+                        result[ch >>> 6] |= 1L << ch;
+                    }
                 }
             }
+            for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+                if (encodingStrategy.shouldEscape((char) ch)) {
+                    result[ch >>> 6] |= 1L << ch;
+                }
+            }
+            return result;
         }
 
         @Override
         public boolean shouldEscape(char ch) {
-            Integer hexcode = new Integer(ch);
-            if (escaped.contains(hexcode)) {
-                return true;
+            return (table[ch >>> 6] & (1L << ch)) != 0;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+        
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
             }
-            return encodingStrateg.shouldEscape(ch);
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
         }
     }
 }
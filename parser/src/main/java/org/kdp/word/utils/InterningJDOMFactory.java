@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdom2.Attribute;
+import org.jdom2.AttributeType;
+import org.jdom2.DefaultJDOMFactory;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+/**
+ * A JDOMFactory that shares element names, attribute names and repeated 
+ * attribute values through a per-document symbol table.
+ * 
+ * Word exports use a small vocabulary of tag names, class and style values 
+ * many times over. Values of attributes that are mostly unique are not interned.
+ * 
+ * Instances are not thread safe and should be used for a single document.
+ */
+public class InterningJDOMFactory extends DefaultJDOMFactory {
+
+    static final Set<String> UNIQUE_ATTRIBUTES = new HashSet<>(Arrays.asList("alt", "content", "href", "id", "name", "src", "title"));
+    
+    private final Map<String, String> symbols = new HashMap<>();
+
+    /**
+     * Get the shared instance of the given string
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String result = symbols.get(value);
+        if (result == null) {
+            symbols.put(value, value);
+            result = value;
+        }
+        return result;
+    }
+
+    public int getSymbolCount() {
+        return symbols.size();
+    }
+
+    @Override
+    public Element element(int line, int col, String name) {
+        return super.element(line, col, intern(name));
+    }
+
+    @Override
+    public Element element(int line, int col, String name, Namespace namespace) {
+        return super.element(line, col, intern(name), namespace);
+    }
+
+    @Override
+    public Element element(int line, int col, String name, String uri) {
+        return super.element(line, col, intern(name), uri);
+    }
+
+    @Override
+    public Element element(int line, int col, String name, String prefix, String uri) {
+        return super.element(line, col, intern(name), prefix, uri);
+    }
+
+    @Override
+    public Attribute attribute(String name, String value, Namespace namespace) {
+        return super.attribute(intern(name), internValue(name, value), namespace);
+    }
+
+    @Override
+    public Attribute attribute(String name, String value, AttributeType type, Namespace namespace) {
+        return super.attribute(intern(name), internValue(name, value), type, namespace);
+    }
+
+    @Override
+    public Attribute attribute(String name, String value) {
+        return super.attribute(intern(name), internValue(name, value));
+    }
+
+    @Override
+    public Attribute attribute(String name, String value, AttributeType type) {
+        return super.attribute(intern(name), internValue(name, value), type);
+    }
+
+    private String internValue(String name, String value) {
+        return UNIQUE_ATTRIBUTES.contains(name) ? value : intern(value);
+    }
+}
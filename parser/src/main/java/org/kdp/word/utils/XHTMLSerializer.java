@@ -0,0 +1,566 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jdom2.Attribute;
+import org.jdom2.CDATA;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.DocType;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
+import org.jdom2.output.EscapeStrategy;
+import org.jdom2.output.Format;
+import org.jdom2.util.NamespaceStack;
+import org.kdp.word.Parser;
+import org.kdp.word.Transformer.Context;
+
+/**
+ * Writes XHTML and OPF documents through a reusable char buffer and a CharsetEncoder 
+ * straight into a byte channel.
+ * 
+ * In compact mode whitespace runs in text are collapsed to a single space. Pretty mode 
+ * puts the children of elements without text on their own indented lines and leaves 
+ * mixed content as it is. Whitespace at the edges of block content is dropped in both modes.
+ * 
+ * Instances are not thread safe.
+ */
+public final class XHTMLSerializer {
+
+    static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList("area", "base", "br", "col", "embed", 
+            "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+    
+    private static final int BUFFER_SIZE = 8192;
+    private static final String INDENT = "  ";
+    
+    private static final boolean[] TEXT_ESCAPE = new boolean[128];
+    private static final boolean[] ATTRIBUTE_ESCAPE = new boolean[128];
+    static {
+        for (char ch : new char[] { '&', '<', '>', '\r' }) {
+            TEXT_ESCAPE[ch] = true;
+            ATTRIBUTE_ESCAPE[ch] = true;
+        }
+        for (char ch : new char[] { '"', '\t', '\n' }) {
+            ATTRIBUTE_ESCAPE[ch] = true;
+        }
+    }
+    
+    private final Charset charset;
+    private final boolean pretty;
+    private final boolean xhtml;
+    private final boolean declaration;
+    private final EscapeStrategy escape;
+    
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE * 2);
+    private final CharsetEncoder encoder;
+    private WritableByteChannel channel;
+    private NamespaceStack namespaces;
+    private OffsetListener listener;
+    private long written;
+
+    private XHTMLSerializer(String encoding, boolean pretty, boolean xhtml, boolean declaration, EscapeStrategy escape) {
+        this.charset = Charset.forName(encoding);
+        this.pretty = pretty;
+        this.xhtml = xhtml;
+        this.declaration = declaration;
+        this.escape = escape;
+        this.encoder = charset.newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Get a serializer for the configured output encoding, format and escaped chars
+     */
+    public static XHTMLSerializer forContext(Context context) {
+        String encoding = context.getParser().getProperty(Parser.PROPERTY_OUTPUT_ENCODING);
+        return forContext(context, encoding != null ? encoding : "UTF-8");
+    }
+
+    /**
+     * Get a serializer for the configured format and escaped chars with the given encoding
+     */
+    public static XHTMLSerializer forContext(Context context, String encoding) {
+        Parser parser = context.getParser();
+        boolean pretty = Parser.OUTPUT_FORMAT_PRETTY.equals(parser.getProperty(Parser.PROPERTY_OUTPUT_FORMAT));
+        EscapeStrategy encodingStrategy = Format.getRawFormat().setEncoding(encoding).getEscapeStrategy();
+        EscapeStrategy escape = new IOUtils.OutputEscapeStrategy(context, encoding, encodingStrategy);
+        return new XHTMLSerializer(encoding, pretty, true, false, escape);
+    }
+
+    /**
+     * Get a serializer for plain XML documents that writes the XML declaration
+     */
+    public static XHTMLSerializer forXML(String encoding, boolean pretty) {
+        EscapeStrategy escape = Format.getRawFormat().setEncoding(encoding).getEscapeStrategy();
+        return new XHTMLSerializer(encoding, pretty, false, true, escape);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Receives the byte offsets of the written start tags and attribute values
+     */
+    public interface OffsetListener {
+        
+        void startElement(Element element, long offset);
+        
+        void attributeValue(Attribute att, long offset);
+    }
+
+    /**
+     * Report the byte offsets, relative to the start of each write, to the given listener
+     */
+    public void setOffsetListener(OffsetListener listener) {
+        this.listener = listener;
+    }
+
+    public void write(Document doc, Path path) throws IOException {
+        try (FileChannel out = open(path)) {
+            write(doc, out);
+        }
+    }
+
+    public void write(Document doc, WritableByteChannel out) throws IOException {
+        begin(out);
+        try {
+            printDocument(doc);
+            finish();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Write the element at the given indent depth, surrounded by the given raw markup
+     */
+    public void write(String prefix, Element element, int depth, String suffix, Path path) throws IOException {
+        try (FileChannel out = open(path)) {
+            write(prefix, element, depth, suffix, out);
+        }
+    }
+
+    public void write(String prefix, Element element, int depth, String suffix, WritableByteChannel out) throws IOException {
+        begin(out);
+        try {
+            append(prefix);
+            printElement(element, depth, false);
+            append(suffix);
+            finish();
+        } finally {
+            end();
+        }
+    }
+
+    public String toString(Document doc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(doc, Channels.newChannel(out));
+        return new String(out.toByteArray(), charset);
+    }
+
+    /**
+     * Get the markup for a single comment
+     */
+    public String toString(Comment comment) {
+        return "<!--" + comment.getText() + "-->";
+    }
+
+    private FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void begin(WritableByteChannel out) {
+        channel = out;
+        namespaces = new NamespaceStack();
+        written = 0;
+        encoder.reset();
+        chars.clear();
+        bytes.clear();
+    }
+
+    private void finish() throws IOException {
+        encode(true);
+        while (encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+
+    private void end() {
+        channel = null;
+        namespaces = null;
+    }
+
+    private void printDocument(Document doc) throws IOException {
+        if (declaration) {
+            append("<?xml version=\"1.0\" encoding=\"");
+            append(charset.name());
+            append("\"?>");
+            newline(0);
+        }
+        for (Content content : doc.getContent()) {
+            if (content instanceof Element) {
+                printElement((Element) content, 0, false);
+            } else if (content instanceof DocType) {
+                printDocType((DocType) content);
+            } else if (content instanceof Comment) {
+                printComment((Comment) content);
+            } else if (content instanceof ProcessingInstruction) {
+                printProcessingInstruction((ProcessingInstruction) content);
+            } else {
+                continue;
+            }
+            newline(0);
+        }
+    }
+
+    private void printElement(Element element, int depth, boolean preserve) throws IOException {
+        String name = element.getQualifiedName();
+        if (listener != null) {
+            listener.startElement(element, position());
+        }
+        append('<');
+        append(name);
+        namespaces.push(element);
+        try {
+            for (Namespace ns : namespaces.addedForward()) {
+                printNamespace(ns);
+            }
+            if (element.hasAttributes()) {
+                for (Attribute att : element.getAttributes()) {
+                    printAttribute(att);
+                }
+            }
+            List<Content> content = element.getContent();
+            if (content.isEmpty()) {
+                if (xhtml && !VOID_ELEMENTS.contains(name)) {
+                    append("></");
+                    append(name);
+                    append('>');
+                } else {
+                    append(" />");
+                }
+                return;
+            }
+            append('>');
+            preserve = preserve || (xhtml && "pre".equals(name)) || "preserve".equals(element.getAttributeValue("space", Namespace.XML_NAMESPACE));
+            if (pretty && !preserve && !hasText(content)) {
+                boolean children = false;
+                for (Content child : content) {
+                    if (!(child instanceof Text) || child instanceof CDATA) {
+                        newline(depth + 1);
+                        printContent(child, depth + 1, preserve);
+                        children = true;
+                    }
+                }
+                if (children) {
+                    newline(depth);
+                }
+            } else {
+                boolean trim = !preserve && (pretty || !xhtml || Parser.BLOCK_ELEMENTS.contains(name));
+                int last = content.size() - 1;
+                for (int i = 0; i <= last; i++) {
+                    Content child = content.get(i);
+                    if (child instanceof Text && !(child instanceof CDATA)) {
+                        printText(((Text) child).getText(), preserve, trim && i == 0, trim && i == last);
+                    } else {
+                        printContent(child, depth, preserve);
+                    }
+                }
+            }
+            append("</");
+            append(name);
+            append('>');
+        } finally {
+            namespaces.pop();
+        }
+    }
+
+    private void printContent(Content content, int depth, boolean preserve) throws IOException {
+        if (content instanceof Element) {
+            printElement((Element) content, depth, preserve);
+        } else if (content instanceof CDATA) {
+            append("<![CDATA[");
+            append(((CDATA) content).getText());
+            append("]]>");
+        } else if (content instanceof Text) {
+            printText(((Text) content).getText(), preserve, false, false);
+        } else if (content instanceof Comment) {
+            printComment((Comment) content);
+        } else if (content instanceof ProcessingInstruction) {
+            printProcessingInstruction((ProcessingInstruction) content);
+        }
+    }
+
+    private void printNamespace(Namespace ns) throws IOException {
+        if (ns == Namespace.XML_NAMESPACE) {
+            return;
+        }
+        append(" xmlns");
+        if (ns.getPrefix().length() > 0) {
+            append(':');
+            append(ns.getPrefix());
+        }
+        append("=\"");
+        printEscaped(ns.getURI(), ATTRIBUTE_ESCAPE);
+        append('"');
+    }
+
+    private void printAttribute(Attribute att) throws IOException {
+        if (!att.isSpecified()) {
+            return;
+        }
+        append(' ');
+        append(att.getQualifiedName());
+        append("=\"");
+        if (listener != null) {
+            listener.attributeValue(att, position());
+        }
+        printEscaped(att.getValue(), ATTRIBUTE_ESCAPE);
+        append('"');
+    }
+
+    /**
+     * Print text with whitespace runs collapsed unless preserved
+     */
+    private void printText(String text, boolean preserve, boolean trimStart, boolean trimEnd) throws IOException {
+        if (preserve) {
+            printEscaped(text, TEXT_ESCAPE);
+            return;
+        }
+        int start = 0;
+        int end = text.length();
+        if (trimStart) {
+            while (start < end && isWhitespace(text.charAt(start))) {
+                start++;
+            }
+        }
+        if (trimEnd) {
+            while (end > start && isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+        }
+        boolean space = false;
+        for (int i = start; i < end; i++) {
+            char ch = text.charAt(i);
+            if (isWhitespace(ch)) {
+                space = true;
+            } else {
+                if (space) {
+                    append(' ');
+                    space = false;
+                }
+                i = printEscaped(text, i, TEXT_ESCAPE);
+            }
+        }
+        if (space) {
+            append(' ');
+        }
+    }
+
+    private void printEscaped(String text, boolean[] markup) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            i = printEscaped(text, i, markup);
+        }
+    }
+
+    /**
+     * Print the char at the given index and return the index of the last char consumed
+     */
+    private int printEscaped(String text, int index, boolean[] markup) throws IOException {
+        char ch = text.charAt(index);
+        if (ch < 128 && markup[ch]) {
+            switch (ch) {
+            case '&': append("&amp;"); break;
+            case '<': append("&lt;"); break;
+            case '>': append("&gt;"); break;
+            case '"': append("&quot;"); break;
+            case '\t': append("&#x9;"); break;
+            case '\n': append("&#xA;"); break;
+            case '\r': append("&#xD;"); break;
+            default: printCharRef(ch);
+            }
+        } else if (escape.shouldEscape(ch)) {
+            if (Character.isHighSurrogate(ch) && index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1))) {
+                printCharRef(Character.toCodePoint(ch, text.charAt(index + 1)));
+                return index + 1;
+            }
+            printCharRef(ch);
+        } else {
+            append(ch);
+        }
+        return index;
+    }
+
+    private void printCharRef(int codepoint) throws IOException {
+        append("&#x");
+        append(Integer.toHexString(codepoint));
+        append(';');
+    }
+
+    private void printComment(Comment comment) throws IOException {
+        append(toString(comment));
+    }
+
+    private void printProcessingInstruction(ProcessingInstruction pi) throws IOException {
+        append("<?");
+        append(pi.getTarget());
+        String data = pi.getData();
+        if (data.length() > 0) {
+            append(' ');
+            append(data);
+        }
+        append("?>");
+    }
+
+    private void printDocType(DocType doctype) throws IOException {
+        append("<!DOCTYPE ");
+        append(doctype.getElementName());
+        if (doctype.getPublicID() != null) {
+            append(" PUBLIC \"");
+            append(doctype.getPublicID());
+            append('"');
+            if (doctype.getSystemID() != null) {
+                append(" \"");
+                append(doctype.getSystemID());
+                append('"');
+            }
+        } else if (doctype.getSystemID() != null) {
+            append(" SYSTEM \"");
+            append(doctype.getSystemID());
+            append('"');
+        }
+        if (doctype.getInternalSubset() != null && doctype.getInternalSubset().length() > 0) {
+            append(" [");
+            append(doctype.getInternalSubset());
+            append(']');
+        }
+        append('>');
+    }
+
+    private void newline(int depth) throws IOException {
+        if (pretty) {
+            append('\n');
+            for (int i = 0; i < depth; i++) {
+                append(INDENT);
+            }
+        }
+    }
+
+    private boolean hasText(List<Content> content) {
+        for (Content child : content) {
+            if (child instanceof Text) {
+                String text = ((Text) child).getText();
+                for (int i = 0; i < text.length(); i++) {
+                    if (!isWhitespace(text.charAt(i))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\n' || ch == '\t' || ch == '\r';
+    }
+
+    private void append(char ch) throws IOException {
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put(ch);
+    }
+
+    private void append(String str) throws IOException {
+        int pos = 0;
+        int len = str.length();
+        while (pos < len) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(chars.remaining(), len - pos);
+            str.getChars(pos, pos + count, chars.array(), chars.arrayOffset() + chars.position());
+            chars.position(chars.position() + count);
+            pos += count;
+        }
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException ex) {
+                    throw new IOException("Cannot encode output", ex);
+                }
+            } else {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    /**
+     * Encode the pending chars and return the number of bytes written so far
+     */
+    private long position() throws IOException {
+        encode(false);
+        return written + bytes.position();
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        written += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
@@ -20,6 +20,8 @@
 package org.kdp.word.test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -38,4 +40,20 @@ public class BasicTagSoupTest {
         Assert.assertEquals("<html><body><a shape=\"rect\" href=\"foo\">aaa</a></body></html>", result.trim());
     }
     
+    @Test
+    public void testCompactWhitespace() throws Exception {
+        File infile = new File("target/tagsoup/Whitespace.html");
+        infile.getParentFile().mkdirs();
+        String html = "<html><body>\n<p><b>a</b> <i>b</i></p>\n<p>c <span>d</span>\ne</p>\n</body></html>";
+        Files.write(infile.toPath(), html.getBytes(StandardCharsets.UTF_8));
+        
+        // whitespace between inline elements survives, between blocks it is dropped
+        Parser parser = ParserBuilderFactory.newInstance().compact().compactWhitespace(true).build();
+        String result = parser.process(infile);
+        Assert.assertEquals("<html><body><p><b>a</b> <i>b</i></p><p>c <span>d</span> e</p></body></html>", result.trim());
+        
+        parser = ParserBuilderFactory.newInstance().compact().compactWhitespace(false).build();
+        result = parser.process(infile);
+        Assert.assertEquals("<html><body><p><b>a</b> <i>b</i></p> <p>c <span>d</span> e</p></body></html>", result.trim());
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.BatchProcessor;
+import org.kdp.word.BatchProcessor.Result;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+
+/**
+ * Tests the {@see BatchProcessor}
+ */
+public class BatchProcessorTest {
+    
+    @Test
+    public void testBatchConversion() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.bookdir("target/batch").threads(2).pretty().build();
+        
+        List<File> inputs = Arrays.asList(new File("src/test/resources/WebPage02.html"), new File("src/test/resources/WebPage07.html"));
+        List<Result> results = new BatchProcessor(parser).process(inputs);
+        Assert.assertEquals(2, results.size());
+        for (Result result : results) {
+            Assert.assertTrue("Success: " + result, result.isSuccess());
+        }
+        
+        Assert.assertTrue(new File("target/batch/WebPage02/WordSection1-TOC.html").isFile());
+        Assert.assertTrue(new File("target/batch/WebPage07/WordSection3.html").isFile());
+        
+        // The parser can be used again
+        results = new BatchProcessor(parser).process(inputs);
+        Assert.assertTrue("Success: " + results.get(0), results.get(0).isSuccess());
+        Assert.assertTrue("Success: " + results.get(1), results.get(1).isSuccess());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.EpubPackager.EntryWriter;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+
+/**
+ * Tests the {@see BuildManifest}
+ */
+public class BuildManifestTest {
+    
+    @Test
+    public void testUnchangedSections() throws Exception {
+        
+        deleteFiles(new File("target/incremental"));
+        File infile = new File("src/test/resources/WebPage07.html");
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.bookdir("target/incremental").opfTarget("test-book.opf").build();
+        parser.convert(infile);
+        
+        Path manifest = Paths.get("target/incremental", BuildManifest.FILE_NAME);
+        String content = new String(Files.readAllBytes(manifest), "UTF-8");
+        Assert.assertTrue(content, content.contains(" WordSection2.html\n"));
+        Assert.assertTrue(content, content.contains(" external.css\n"));
+        Assert.assertTrue(content, content.contains(" test-book.opf\n"));
+        
+        // A file that still has the recorded size and time is not written again
+        Path section = Paths.get("target/incremental/WordSection2.html");
+        String expected = new String(Files.readAllBytes(section), "UTF-8");
+        long modified = section.toFile().lastModified();
+        Files.write(section, expected.replace("Sections 2", "Sections X").getBytes("UTF-8"));
+        section.toFile().setLastModified(modified);
+        parser.convert(infile);
+        Assert.assertTrue(new String(Files.readAllBytes(section), "UTF-8").contains("Sections X"));
+        
+        // A file that was touched is written again
+        section.toFile().setLastModified(modified - 10000);
+        parser.convert(infile);
+        Assert.assertEquals(expected, new String(Files.readAllBytes(section), "UTF-8"));
+    }
+    
+    @Test
+    public void testStreamedWrite() throws Exception {
+        
+        Path bookdir = Paths.get("target/streamed");
+        Path path = bookdir.resolve("streamed.txt");
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(bookdir.resolve(BuildManifest.FILE_NAME));
+        BuildManifest manifest = BuildManifest.load(bookdir);
+        Assert.assertTrue(manifest.write(path, new EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write("content".getBytes("UTF-8"));
+            }
+        }));
+        Assert.assertEquals("content", new String(Files.readAllBytes(path), "UTF-8"));
+        
+        // The same content is not moved into place again and no temp file is left
+        long modified = path.toFile().lastModified() - 10000;
+        path.toFile().setLastModified(modified);
+        manifest.record(path, BuildManifest.digest("content".getBytes("UTF-8")));
+        Assert.assertFalse(manifest.write(path, new EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write("content".getBytes("UTF-8"));
+            }
+        }));
+        Assert.assertEquals(modified, path.toFile().lastModified());
+        manifest.close();
+        Assert.assertEquals(Arrays.asList(BuildManifest.FILE_NAME, "streamed.txt"), sortedNames(bookdir));
+    }
+
+    @Test
+    public void testStaleEntries() throws Exception {
+        
+        Path bookdir = Paths.get("target/stale");
+        deleteFiles(bookdir.toFile());
+        BuildManifest manifest = BuildManifest.load(bookdir);
+        Assert.assertTrue(manifest.write(bookdir.resolve("a.txt"), "a".getBytes("UTF-8")));
+        Assert.assertTrue(manifest.write(bookdir.resolve("b.txt"), "b".getBytes("UTF-8")));
+        manifest.close();
+        
+        // An unchanged file stays in the manifest, a file that is no longer written is dropped
+        manifest = BuildManifest.load(bookdir);
+        Assert.assertFalse(manifest.write(bookdir.resolve("a.txt"), "a".getBytes("UTF-8")));
+        manifest.close();
+        String content = new String(Files.readAllBytes(bookdir.resolve(BuildManifest.FILE_NAME)), "UTF-8");
+        Assert.assertTrue(content, content.contains(" a.txt\n"));
+        Assert.assertFalse(content, content.contains(" b.txt\n"));
+    }
+
+    private List<String> sortedNames(Path dir) {
+        List<String> names = Arrays.asList(dir.toFile().list());
+        Collections.sort(names);
+        return names;
+    }
+
+    private void deleteFiles(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFiles(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.utils.CSSParser;
+
+/**
+ * Tests the {@see CSSParser}
+ */
+public class CSSParserTest {
+    
+    @Test
+    public void testExternalStyles() throws Exception {
+        
+        final List<String> selectors = new ArrayList<>();
+        Reader reader = new FileReader("src/test/resources/external.css");
+        try {
+            CSSParser.parse(reader, new RuleCollector(selectors));
+        } finally {
+            reader.close();
+        }
+        Assert.assertTrue("Contains h1: " + selectors, selectors.contains("h1"));
+        Assert.assertTrue("Contains h4: " + selectors, selectors.contains("h4"));
+        Assert.assertTrue("Contains li: " + selectors, selectors.contains("li"));
+        Assert.assertEquals("Last rule parsed: " + selectors, "blockquote", selectors.get(selectors.size() - 1));
+    }
+    
+    @Test
+    public void testCommentsAndAtRules() throws Exception {
+        
+        String css = "@charset \"UTF-8\";\n" 
+                + "/* p { color: red } */\n" 
+                + "@media screen { p.a, p.b { margin: 0 } }\n" 
+                + "@keyframes spin { from { opacity: 0 } to { opacity: 1 } }\n" 
+                + "a:not(.x,.y) { background: url(data:image/png;base64,AAA) }\n" 
+                + "span { content: \"a;b}\"; COLOR : blue }";
+        
+        final List<String> selectors = new ArrayList<>();
+        final List<Map<String, String>> declarations = new ArrayList<>();
+        final List<String> atrules = new ArrayList<>();
+        CSSParser.parse(new StringReader(css), new RuleCollector(selectors) {
+            @Override
+            public void rule(List<String> names, Map<String, String> decls) {
+                super.rule(names, decls);
+                declarations.add(decls);
+            }
+            @Override
+            public void atRule(String name, String prelude) {
+                atrules.add(name + " " + prelude);
+            }
+        });
+        Assert.assertEquals("[p.a, p.b, a:not(.x,.y), span]", selectors.toString());
+        Assert.assertEquals("[charset \"UTF-8\"]", atrules.toString());
+        Assert.assertEquals("url(data:image/png;base64,AAA)", declarations.get(1).get("background"));
+        Assert.assertEquals("\"a;b}\"", declarations.get(2).get("content"));
+        Assert.assertEquals("blue", declarations.get(2).get("color"));
+    }
+    
+    @Test
+    public void testDeclarations() throws Exception {
+        Map<String, String> decls = CSSParser.parseDeclarations("mso-list:l0 level1 lfo1;margin-left:  .5in ;;font-family:\"Times New Roman\"");
+        Assert.assertEquals("[mso-list, margin-left, font-family]", decls.keySet().toString());
+        Assert.assertEquals(".5in", decls.get("margin-left"));
+        Assert.assertEquals("\"Times New Roman\"", decls.get("font-family"));
+    }
+
+    static class RuleCollector implements CSSParser.Handler {
+        
+        private final List<String> selectors;
+        
+        RuleCollector(List<String> selectors) {
+            this.selectors = selectors;
+        }
+
+        @Override
+        public void rule(List<String> names, Map<String, String> declarations) {
+            selectors.addAll(names);
+        }
+
+        @Override
+        public void atRule(String name, String prelude) {
+        }
+    }
+}
@@ -24,6 +24,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -48,4 +52,54 @@ public class CharacterEncodingTest {
         result = parser.process(infile);
         Assert.assertTrue("Contains: " + result, result.contains("Blumen f&#xfc;r alle"));
     }
+
+    @Test
+    public void testByteOrderMark() throws Exception {
+        
+        // The configured input.charset is x-MacRoman
+        Path infile = Paths.get("target/encoding/bom.html");
+        Files.createDirectories(infile.getParent());
+        byte[] bom = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+        byte[] content = "<html><body><p>Blumen f\u00fcr alle</p></body></html>".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[bom.length + content.length];
+        System.arraycopy(bom, 0, bytes, 0, bom.length);
+        System.arraycopy(content, 0, bytes, bom.length, content.length);
+        Files.write(infile, bytes);
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.compact().build();
+        String result = parser.process(infile.toFile());
+        Assert.assertTrue("Contains: " + result, result.contains("Blumen f&#xfc;r alle"));
+    }
+    
+    @Test
+    public void testMetaCharset() throws Exception {
+        
+        // The configured input.charset is x-MacRoman
+        Path infile = Paths.get("target/encoding/meta.html");
+        Files.createDirectories(infile.getParent());
+        String content = "<html><head><meta http-equiv=Content-Type content=\"text/html; charset=utf-8\"></head><body><p>Blumen f\u00fcr alle</p></body></html>";
+        Files.write(infile, content.getBytes(StandardCharsets.UTF_8));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.compact().build();
+        String result = parser.process(infile.toFile());
+        Assert.assertTrue("Contains: " + result, result.contains("Blumen f&#xfc;r alle"));
+    }
+
+    @Test
+    public void testSupplementaryChar() throws Exception {
+        
+        Path infile = Paths.get("target/encoding/supplementary.html");
+        Files.createDirectories(infile.getParent());
+        String content = "<html><head><meta http-equiv=Content-Type content=\"text/html; charset=utf-8\"></head><body><p title=\"x\uD83D\uDE00y\">x\uD83D\uDE00y</p></body></html>";
+        Files.write(infile, content.getBytes(StandardCharsets.UTF_8));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.compact().build();
+        String result = parser.process(infile.toFile());
+        Assert.assertTrue("Contains: " + result, result.contains(">x&#x1f600;y</p>"));
+        Assert.assertTrue("Contains: " + result, result.contains("title=\"x&#x1f600;y\""));
+        Assert.assertFalse("Contains: " + result, result.contains("?"));
+    }
 }
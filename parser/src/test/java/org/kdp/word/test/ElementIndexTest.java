@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.ElementIndex;
+
+/**
+ * Tests the {@see ElementIndex}
+ */
+public class ElementIndexTest {
+    
+    @Test
+    public void testDocumentOrder() throws Exception {
+        
+        Element body = new Element("body");
+        Document doc = new Document(new Element("html").addContent(body));
+        Element p1 = new Element("p").setAttribute("class", "MsoNormal");
+        Element p2 = new Element("p").setAttribute("class", "MsoNormal");
+        body.addContent(p2);
+        
+        ElementIndex index = new ElementIndex();
+        index.add(doc.getRootElement());
+        
+        // An element that is added later but comes first in the document
+        body.addContent(0, p1);
+        index.add(p1);
+        
+        List<Element> elements = index.getElementsByClass("MsoNormal");
+        Assert.assertEquals(2, elements.size());
+        Assert.assertSame(p1, elements.get(0));
+        Assert.assertSame(p2, elements.get(1));
+        Assert.assertSame(p1, index.findElement("p", "class", "MsoNormal"));
+        
+        // Detached elements are not returned
+        p1.detach();
+        Assert.assertSame(p2, index.findElement("p"));
+    }
+    
+    @Test
+    public void testChangedAttribute() throws Exception {
+        
+        Element p = new Element("p").setAttribute("class", "MsoNormal");
+        Document doc = new Document(new Element("html").addContent(p));
+        
+        ElementIndex index = new ElementIndex();
+        index.add(doc.getRootElement());
+        
+        p.setAttribute("class", "quote");
+        Assert.assertTrue(index.getElementsByClass("MsoNormal").isEmpty());
+        Assert.assertTrue(index.getElementsByClass("quote").isEmpty());
+        
+        index.update(p);
+        Assert.assertSame(p, index.findElement("p", "class", "quote"));
+        Assert.assertTrue(index.getElementsByClass("MsoNormal").isEmpty());
+    }
+    
+    @Test
+    public void testManyElements() throws Exception {
+        
+        Element body = new Element("body");
+        Document doc = new Document(new Element("html").addContent(body));
+        List<Element> paras = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Element p = new Element("p").setAttribute("class", "MsoNormal");
+            body.addContent(new Element("div").addContent(p));
+            paras.add(p);
+        }
+        ElementIndex index = new ElementIndex();
+        index.add(doc.getRootElement());
+        
+        // Elements added in the middle are returned in document order
+        Element first = new Element("p").setAttribute("class", "MsoNormal");
+        body.addContent(0, first);
+        index.add(first);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertSame(first, index.findElement("p", "class", "MsoNormal"));
+        }
+        List<Element> elements = index.getElementsByClass("MsoNormal");
+        Assert.assertEquals(10001, elements.size());
+        Assert.assertSame(first, elements.get(0));
+        Assert.assertEquals(paras, elements.subList(1, elements.size()));
+        
+        // Detached subtrees are dropped
+        for (int i = 0; i < 5000; i++) {
+            paras.get(i).getParentElement().detach();
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(5001, index.getElementsByClass("MsoNormal").size());
+        }
+        Assert.assertEquals(5001, index.getElements("p").size());
+        Assert.assertSame(paras.get(5000), index.getElements("p").get(1));
+    }
+}
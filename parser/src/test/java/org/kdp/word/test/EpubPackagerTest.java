@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.EpubPackager;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+
+/**
+ * Tests the {@see EpubPackager}
+ */
+public class EpubPackagerTest {
+    
+    @Test
+    public void testPackagedBook() throws Exception {
+        
+        File infile = new File("src/test/resources/WebPage07.html");
+        Path epub = Paths.get("target/epub/test-book.epub");
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("test.xhtml").opfTarget("test-book.opf").epub(epub.toString()).pretty().build();
+        String result = parser.process(infile);
+        Assert.assertTrue(result, result.contains("<body"));
+        byte[] first = Files.readAllBytes(epub);
+
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+            ZipEntry entry = zip.getNextEntry();
+            Assert.assertEquals("mimetype", entry.getName());
+            Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+            while (entry != null) {
+                names.add(entry.getName());
+                entry = zip.getNextEntry();
+            }
+        }
+        Assert.assertEquals(EpubPackager.MIMETYPE, new String(Arrays.copyOfRange(first, 38, 58), "US-ASCII"));
+        Assert.assertTrue(names.toString(), names.contains(EpubPackager.CONTAINER));
+        Assert.assertTrue(names.toString(), names.contains("test-book.opf"));
+        Assert.assertTrue(names.toString(), names.contains("test.xhtml"));
+        Assert.assertTrue(names.toString(), names.contains("WordSection2.html"));
+        Assert.assertTrue(names.toString(), names.contains("external.css"));
+        
+        // Same input gives the same bytes
+        builder = ParserBuilderFactory.newInstance();
+        parser = builder.output("test.xhtml").opfTarget("test-book.opf").epub(epub.toString()).pretty().build();
+        parser.convert(infile);
+        Assert.assertArrayEquals(first, Files.readAllBytes(epub));
+    }
+    
+    @Test
+    public void testRebuildInBookDir() throws Exception {
+        
+        File infile = new File("src/test/resources/WebPage08.html");
+        Path epub = Paths.get("target/epub/rebuild.epub");
+        
+        // Leave the content and endnotes documents in the book dir
+        ParserBuilder builder = ParserBuilderFactory.newInstance().bookdir("target/epub/book");
+        builder.output("rebuild.xhtml").endnotes("Endnotes.html").build().convert(infile);
+        Assert.assertTrue(Files.isRegularFile(Paths.get("target/epub/book/rebuild.xhtml")));
+        
+        for (int i = 0; i < 2; i++) {
+            builder = ParserBuilderFactory.newInstance().bookdir("target/epub/book");
+            Parser parser = builder.output("rebuild.xhtml").endnotes("Endnotes.html").opfTarget("rebuild.opf").epub(epub.toString()).build();
+            parser.convert(infile);
+            
+            List<String> names = new ArrayList<>();
+            try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+                for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                    names.add(entry.getName());
+                }
+            }
+            Assert.assertTrue(names.toString(), names.contains("rebuild.xhtml"));
+            Assert.assertTrue(names.toString(), names.contains("Endnotes.html"));
+            Assert.assertEquals(names.toString(), new HashSet<>(names).size(), names.size());
+        }
+    }
+}
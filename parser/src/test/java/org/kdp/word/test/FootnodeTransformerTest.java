@@ -20,6 +20,9 @@
 package org.kdp.word.test;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -43,5 +46,46 @@ public class FootnodeTransformerTest {
         
         Assert.assertTrue("Contains name=_ftnref1", result.contains("name=\"_ftnref1\""));
         Assert.assertTrue("Contains <a ...>[1]</a>", result.contains("<a ") && result.contains("[1]</a>"));
+        Assert.assertTrue("Contains aside", result.contains("<aside ") && result.contains("id=\"_ftn1\""));
+    }
+    
+    @Test
+    public void testEndnotes() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("footnotes.html").endnotes("Endnotes.html").pretty().build();
+        
+        File infile = new File("src/test/resources/WebPage08.html");
+        String result = parser.process(infile);
+        //System.out.println(result);
+        
+        Assert.assertTrue("Contains href=Endnotes.html#_ftn1", result.contains("href=\"Endnotes.html#_ftn1\""));
+        Assert.assertFalse("No footnote text", result.contains("some footnote text"));
+        
+        File endfile = new File("target/book/Endnotes.html");
+        Assert.assertTrue("Exists Endnotes.html", endfile.exists());
+        String endnotes = new String(Files.readAllBytes(endfile.toPath()), "UTF-8");
+        Assert.assertTrue("Contains footnote text", endnotes.contains("some footnote text"));
+        Assert.assertTrue("Contains backref", endnotes.contains("href=\"footnotes.html#_ftnref1\""));
+    }
+
+    @Test
+    public void testEndnotesInSection() throws Exception {
+        
+        // The reference is moved to WordSection1.html with its section
+        Path source = Paths.get("target/footnotes/sections.html");
+        Files.createDirectories(source.getParent());
+        String body = new String(Files.readAllBytes(Paths.get("src/test/resources/WebPage08.html")), "UTF-8");
+        body = body.replace("<body>", "<body><div class=WordSection1>").replace("</body>", "</div></body>");
+        Files.write(source, body.getBytes("UTF-8"));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance().bookdir("target/footnotes/book");
+        Parser parser = builder.output("sections.html").endnotes("Endnotes.html").pretty().build();
+        parser.convert(source.toFile());
+        
+        String section = new String(Files.readAllBytes(Paths.get("target/footnotes/book/WordSection1.html")), "UTF-8");
+        Assert.assertTrue(section, section.contains("name=\"_ftnref1\""));
+        String endnotes = new String(Files.readAllBytes(Paths.get("target/footnotes/book/Endnotes.html")), "UTF-8");
+        Assert.assertTrue(endnotes, endnotes.contains("href=\"WordSection1.html#_ftnref1\""));
     }
 }
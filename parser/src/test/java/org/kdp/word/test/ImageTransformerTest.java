@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+
+/**
+ * Tests the {@see ImageTransformer}
+ */
+public class ImageTransformerTest {
+    
+    @Test
+    public void testOptimizedImage() throws Exception {
+        
+        File cachedir = new File("target/image-cache");
+        deleteFiles(cachedir);
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.bookdir("target/images").imageLimits(275, 600).imageCache(cachedir.getPath()).opfTarget("images.opf").build();
+        
+        File infile = new File("src/test/resources/WebPage03.html");
+        String result = parser.process(infile);
+        Assert.assertTrue(result, result.contains("src=\"images/Arabia600AD-550w.jpg\""));
+        
+        // Scaled to the width limit
+        Path imgpath = Paths.get("target/images/images/Arabia600AD-550w.jpg");
+        BufferedImage image = ImageIO.read(imgpath.toFile());
+        Assert.assertEquals(275, image.getWidth());
+        Assert.assertEquals(436, image.getHeight());
+        Assert.assertEquals(1, cachedir.list().length);
+        
+        String opf = new String(Files.readAllBytes(Paths.get("target/images/images.opf")), "UTF-8");
+        Assert.assertTrue(opf, opf.contains("href=\"images/Arabia600AD-550w.jpg\" media-type=\"image/jpeg\""));
+        
+        // The second run uses the cached result
+        byte[] first = Files.readAllBytes(imgpath);
+        Files.delete(imgpath);
+        File cached = cachedir.listFiles()[0];
+        long modified = cached.lastModified();
+        parser.process(infile);
+        Assert.assertArrayEquals(first, Files.readAllBytes(imgpath));
+        Assert.assertEquals(modified, cached.lastModified());
+    }
+
+    @Test
+    public void testUnchangedGif() throws Exception {
+        
+        Path source = Paths.get("target/gif/animated.gif");
+        Files.createDirectories(source.getParent());
+        ImageIO.write(new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_INDEXED), "gif", source.toFile());
+        Files.write(Paths.get("target/gif/gif.html"), "<html><body><p><img src=\"animated.gif\"/></p></body></html>".getBytes("UTF-8"));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.bookdir("target/gif/book").imageLimits(10, 10).imageCache("").opfTarget("gif.opf").build();
+        parser.convert(new File("target/gif/gif.html"));
+        
+        // The parser waits for the image, GIFs are not scaled
+        Assert.assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(Paths.get("target/gif/book/animated.gif")));
+    }
+
+    private void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
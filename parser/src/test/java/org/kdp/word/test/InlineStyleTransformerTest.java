@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+
+/**
+ * Tests the {@see InlineStyleTransformer}
+ */
+public class InlineStyleTransformerTest {
+    
+    @Test
+    public void testGeneratedClasses() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("inline-styles.html").pretty().build();
+        
+        File infile = new File("src/test/resources/WebPage10.html");
+        String result = parser.process(infile);
+        //System.out.println(result);
+        
+        Assert.assertFalse("No style attributes", result.contains("style="));
+        Assert.assertTrue("Contains generated class", result.contains("<p class=\"w2m-"));
+        Assert.assertTrue("Contains mso only paragraph", result.contains("<p>Third paragraph</p>"));
+        
+        String css = new String(Files.readAllBytes(Paths.get("target/book/external.css")), "UTF-8");
+        Assert.assertEquals("One shared rule", 1, count(css, "{ margin-bottom: 0cm; line-height: normal }"));
+        Assert.assertTrue("Contains span rule", css.contains("{ font-size: 10.0pt; font-family: \"Times New Roman\" }"));
+        Assert.assertFalse("No mso properties", css.contains("mso-"));
+    }
+
+    @Test
+    public void testCompetingWordRule() throws Exception {
+        
+        Path cssfile = Paths.get("target/inline/word.css");
+        Files.createDirectories(cssfile.getParent());
+        Files.write(cssfile, "p.MsoNormal { margin-bottom: 10.0pt; line-height: 115% }\n".getBytes(StandardCharsets.UTF_8));
+        
+        ParserBuilder builder = new ParserBuilder();
+        Parser parser = builder.css(cssfile.toString()).bookdir("target/inline/book").pretty().build();
+        parser.process(new File("src/test/resources/WebPage10.html"));
+        
+        // The generated rules are as specific as the Word rule and come after it
+        String css = new String(Files.readAllBytes(Paths.get("target/inline/book/word.css")), "UTF-8");
+        int wordRule = css.indexOf("p.MsoNormal {");
+        int pRule = css.indexOf("{ margin-bottom: 0cm; line-height: normal }");
+        Assert.assertTrue(css, wordRule >= 0 && pRule > wordRule);
+        String selector = css.substring(css.lastIndexOf('\n', pRule) + 1, pRule).trim();
+        Assert.assertTrue(selector, selector.matches("p\\.w2m-[0-9a-f]+(-\\d+)?"));
+        Assert.assertTrue(css, css.contains("span.w2m-"));
+    }
+
+    private int count(String text, String substr) {
+        int result = 0;
+        for (int index = text.indexOf(substr); index >= 0; index = text.indexOf(substr, index + 1)) {
+            result++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+import org.kdp.word.mobi.PalmDocCompression;
+
+/**
+ * Tests the {@see MobiTransformer}
+ */
+public class MobiTransformerTest {
+    
+    @Test
+    public void testGeneratedMobi() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("test.xhtml").opfTarget("test-book.opf").mobi("target/mobi/test-book.mobi").build();
+        
+        File infile = new File("src/test/resources/WebPage07.html");
+        parser.convert(infile);
+        
+        ByteBuffer mobi = ByteBuffer.wrap(Files.readAllBytes(Paths.get("target/mobi/test-book.mobi")));
+        Assert.assertEquals("BOOKMOBI", new String(mobi.array(), 60, 8, "US-ASCII"));
+        String result = readText(mobi);
+        Assert.assertTrue(result, result.startsWith("<html><head><title>Blumen f\u00fcr Alle</title>"));
+        Assert.assertTrue(result, result.contains("Sections 2"));
+        Assert.assertTrue(result, result.contains("<mbp:pagebreak />"));
+        Assert.assertTrue(result, result.endsWith("</body></html>"));
+    }
+
+    @Test
+    public void testResolvedLinks() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.mobi("target/mobi/WebPage02.mobi").build();
+        
+        File infile = new File("src/test/resources/WebPage02.html");
+        parser.convert(infile);
+        
+        ByteBuffer mobi = ByteBuffer.wrap(Files.readAllBytes(Paths.get("target/mobi/WebPage02.mobi")));
+        String result = readText(mobi);
+        Assert.assertFalse(result, result.contains("href=\"WebPage02.html#"));
+        
+        // The guide and the chapter links point to the start of a tag
+        Matcher matcher = Pattern.compile("filepos=\"(\\d{10})\"").matcher(result);
+        byte[] bytes = result.getBytes("UTF-8");
+        int count = 0;
+        while (matcher.find()) {
+            int offset = Integer.parseInt(matcher.group(1));
+            Assert.assertEquals(result, '<', bytes[offset]);
+            count++;
+        }
+        Assert.assertTrue(result, count > 1);
+    }
+
+    @Test
+    public void testPlaceholderInText() throws Exception {
+        
+        Path source = Paths.get("target/mobi/links/links.html");
+        Files.createDirectories(source.getParent());
+        String text = "filepos=0000000000 and filepos=\"0000000000\"";
+        Files.write(source, ("<html><head><title>Links</title></head><body>"
+                + "<p title=\"" + text.replace("\"", "&quot;") + "\">" + text + "</p>"
+                + "<p><a href=\"#target\">link</a></p>"
+                + "<p id=\"target\">target</p></body></html>").getBytes("UTF-8"));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance().bookdir("target/mobi/links/book");
+        Parser parser = builder.mobi("target/mobi/links/links.mobi").build();
+        parser.convert(source.toFile());
+        
+        String result = readText(ByteBuffer.wrap(Files.readAllBytes(Paths.get("target/mobi/links/links.mobi"))));
+        Assert.assertTrue(result, result.contains(">" + text + "</p>"));
+        Matcher matcher = Pattern.compile("<a [^>]*filepos=\"(\\d{10})\"").matcher(result);
+        Assert.assertTrue(result, matcher.find());
+        int offset = Integer.parseInt(matcher.group(1));
+        Assert.assertTrue(result, new String(result.getBytes("UTF-8"), offset, 15, "UTF-8").startsWith("<p id=\"target\""));
+    }
+
+    @Test
+    public void testPalmDocCompression() throws Exception {
+        
+        String markup = "<p class=\"MsoNormal\">Blumen f\u00fcr Alle, Blumen f\u00fcr Alle</p>\n";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append(markup);
+        }
+        byte[] data = builder.toString().getBytes("UTF-8");
+        byte[] compressed = PalmDocCompression.compress(data);
+        Assert.assertTrue("Compressed: " + compressed.length, compressed.length < data.length / 2);
+        Assert.assertArrayEquals(data, PalmDocCompression.decompress(compressed));
+        
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        Assert.assertArrayEquals(random, PalmDocCompression.decompress(PalmDocCompression.compress(random)));
+    }
+
+    private String readText(ByteBuffer mobi) throws Exception {
+        int header = mobi.getInt(78);
+        Assert.assertEquals(2, mobi.getShort(header));
+        Assert.assertEquals("MOBI", new String(mobi.array(), header + 16, 4, "US-ASCII"));
+        Assert.assertEquals("EXTH", new String(mobi.array(), header + 248, 4, "US-ASCII"));
+        
+        // Decompress the text records
+        int textLength = mobi.getInt(header + 4);
+        int textCount = mobi.getShort(header + 8);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (int i = 1; i <= textCount; i++) {
+            int start = mobi.getInt(78 + 8 * i);
+            int end = mobi.getInt(78 + 8 * (i + 1));
+            text.write(PalmDocCompression.decompress(Arrays.copyOfRange(mobi.array(), start, end)));
+        }
+        Assert.assertEquals(textLength, text.size());
+        return new String(text.toByteArray(), "UTF-8");
+    }
+}
@@ -19,9 +19,10 @@
  */
 package org.kdp.word.test;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,14 +49,9 @@ public class OPFTransformerTest {
         Assert.assertTrue("File exists: " + opffile, opffile.isFile());
 
         List<String> lines = new ArrayList<>();
-        BufferedReader br = new BufferedReader(new FileReader(opffile));
-        String line = br.readLine();
-        while (line != null) {
-            //System.out.println(line);
+        for (String line : Files.readAllLines(opffile.toPath(), StandardCharsets.UTF_8)) {
             lines.add(line.trim());
-            line = br.readLine();
         }
-        br.close();
         
         Assert.assertTrue(contains(lines, "<dc:title>Blumen für Alle</dc:title>"));
         Assert.assertTrue(contains(lines, "<dc:creator xmlns:epub=\"http://www.idpf.org/2007/opf\" epub:role=\"aut\">Peter Post</dc:creator>"));
@@ -65,6 +61,27 @@ public class OPFTransformerTest {
         Assert.assertTrue(contains(lines, "id=\"Content\" href=\"test.xhtml\""));
     }
 
+    @Test
+    public void testParallelSections() throws Exception {
+        
+        File infile = new File("src/test/resources/WebPage07.html");
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("test.xhtml").opfTarget("test-book.opf").pretty().build();
+        parser.process(infile);
+        byte[] opfSequential = Files.readAllBytes(Paths.get("target/book/test-book.opf"));
+        byte[] sectionSequential = Files.readAllBytes(Paths.get("target/book/WordSection2.html"));
+        
+        builder = ParserBuilderFactory.newInstance();
+        parser = builder.output("test.xhtml").opfTarget("test-book.opf").sectionParallelism(4).pretty().build();
+        parser.process(infile);
+        byte[] opfParallel = Files.readAllBytes(Paths.get("target/book/test-book.opf"));
+        byte[] sectionParallel = Files.readAllBytes(Paths.get("target/book/WordSection2.html"));
+        
+        Assert.assertEquals(new String(opfSequential, "UTF-8"), new String(opfParallel, "UTF-8"));
+        Assert.assertEquals(new String(sectionSequential, "UTF-8"), new String(sectionParallel, "UTF-8"));
+    }
+
     private boolean contains(List<String> lines, String substr) {
         for (String line : lines) {
             if (line.contains(substr)) {
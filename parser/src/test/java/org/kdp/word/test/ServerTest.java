@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+import org.kdp.word.Server;
+import org.kdp.word.Transformer;
+
+/**
+ * Tests the {@see Server}
+ */
+public class ServerTest {
+    
+    @Test
+    public void testConvert() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.port(0).pretty().opfTemplate("src/test/resources/opf-template.xml").build();
+        
+        Server server = new Server(parser);
+        server.start();
+        try {
+            byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/WebPage07.html"));
+            Set<String> entries = post(server, "name=MyBook.html&output.format=compact", "text/html", bytes);
+            Assert.assertTrue("Contains MyBook.html: " + entries, entries.contains("MyBook.html"));
+            Assert.assertTrue("Contains MyBook.opf: " + entries, entries.contains("MyBook.opf"));
+            Assert.assertTrue("Contains WordSection1.html: " + entries, entries.contains("WordSection1.html"));
+            Assert.assertTrue("Contains WordSection2.html: " + entries, entries.contains("WordSection2.html"));
+            Assert.assertTrue("Contains WordSection3.html: " + entries, entries.contains("WordSection3.html"));
+            Assert.assertFalse("No build manifest: " + entries, entries.contains(BuildManifest.FILE_NAME));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.port(0).threads(2).mobi("target/book/server.mobi").opfTemplate("src/test/resources/opf-template.xml").build();
+        
+        final Server server = new Server(parser);
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/WebPage07.html"));
+            Future<Set<String>> futureA = executor.submit(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws Exception {
+                    return post(server, "name=BookA.html", "text/html", bytes);
+                }
+            });
+            Future<Set<String>> futureB = executor.submit(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws Exception {
+                    return post(server, "name=BookB.html", "text/html", bytes);
+                }
+            });
+            Set<String> entriesA = futureA.get();
+            Set<String> entriesB = futureB.get();
+            
+            // Each job writes its own book dir, including the MOBI file
+            Assert.assertTrue("Contains BookA.opf: " + entriesA, entriesA.contains("BookA.opf"));
+            Assert.assertTrue("Contains WordSection2.html: " + entriesA, entriesA.contains("WordSection2.html"));
+            Assert.assertTrue("Contains server.mobi: " + entriesA, entriesA.contains("server.mobi"));
+            Assert.assertFalse("No BookB.html: " + entriesA, entriesA.contains("BookB.html"));
+            Assert.assertTrue("Contains BookB.opf: " + entriesB, entriesB.contains("BookB.opf"));
+            Assert.assertTrue("Contains WordSection2.html: " + entriesB, entriesB.contains("WordSection2.html"));
+            Assert.assertTrue("Contains server.mobi: " + entriesB, entriesB.contains("server.mobi"));
+            Assert.assertFalse("No BookA.html: " + entriesB, entriesB.contains("BookA.html"));
+        } finally {
+            executor.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testZipUpload() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.port(0).opfTemplate("src/test/resources/opf-template.xml").build();
+        
+        Server server = new Server(parser);
+        server.start();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ZipOutputStream zip = new ZipOutputStream(baos);
+            zip.putNextEntry(new ZipEntry("WebPage03.html"));
+            zip.write(Files.readAllBytes(Paths.get("src/test/resources/WebPage03.html")));
+            zip.putNextEntry(new ZipEntry("images/Arabia600AD-550w.jpg"));
+            zip.write(Files.readAllBytes(Paths.get("src/test/resources/images/Arabia600AD-550w.jpg")));
+            zip.close();
+            
+            Set<String> entries = post(server, "name=WebPage03.html", "application/zip", baos.toByteArray());
+            Assert.assertTrue("Contains WebPage03.html: " + entries, entries.contains("WebPage03.html"));
+            Assert.assertTrue("Contains image: " + entries, entries.contains("images/Arabia600AD-550w.jpg"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMaliciousZip() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.port(0).opfTemplate("src/test/resources/opf-template.xml").build();
+        
+        Server server = new Server(parser);
+        server.start();
+        try {
+            // The uploaded config cannot load classes
+            byte[] bytes = zipWithConfig("transformer.99 = " + MarkerTransformer.class.getName());
+            HttpURLConnection con = open(server, "name=WebPage03.html", "application/zip", bytes);
+            Assert.assertEquals(500, con.getResponseCode());
+            Assert.assertFalse("Transformer created", MarkerTransformer.created);
+            
+            // Nor write outside the work dir
+            bytes = zipWithConfig("footnote.endnotes = ../../endnotes-escape.html");
+            con = open(server, "name=WebPage03.html", "application/zip", bytes);
+            Assert.assertEquals(500, con.getResponseCode());
+            bytes = zipWithConfig("image.cache.dir = " + Paths.get("target/image-escape").toAbsolutePath());
+            con = open(server, "name=WebPage03.html", "application/zip", bytes);
+            Assert.assertEquals(500, con.getResponseCode());
+            Assert.assertFalse(Files.exists(Paths.get("target/image-escape")));
+            
+            // A cache dir inside the work dir is fine
+            Set<String> entries = post(server, "name=WebPage03.html", "application/zip", zipWithConfig("image.cache.dir = cache"));
+            Assert.assertTrue("Contains WebPage03.html: " + entries, entries.contains("WebPage03.html"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private byte[] zipWithConfig(String config) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(baos);
+        zip.putNextEntry(new ZipEntry("WebPage03.html"));
+        zip.write(Files.readAllBytes(Paths.get("src/test/resources/WebPage03.html")));
+        zip.putNextEntry(new ZipEntry(Parser.CONFIGURATION_PROPERTIES));
+        zip.write(config.getBytes("UTF-8"));
+        zip.close();
+        return baos.toByteArray();
+    }
+
+    private Set<String> post(Server server, String query, String contentType, byte[] bytes) throws Exception {
+        HttpURLConnection con = open(server, query, contentType, bytes);
+        Assert.assertEquals(200, con.getResponseCode());
+        
+        Set<String> entries = new HashSet<>();
+        InputStream in = con.getInputStream();
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry = zip.getNextEntry();
+        while (entry != null) {
+            entries.add(entry.getName());
+            entry = zip.getNextEntry();
+        }
+        zip.close();
+        return entries;
+    }
+
+    private HttpURLConnection open(Server server, String query, String contentType, byte[] bytes) throws Exception {
+        InetSocketAddress address = server.getAddress();
+        URL url = new URL("http://localhost:" + address.getPort() + Server.CONTEXT_PATH + "?" + query);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", contentType);
+        con.setDoOutput(true);
+        OutputStream out = con.getOutputStream();
+        out.write(bytes);
+        out.close();
+        return con;
+    }
+    
+    public static class MarkerTransformer implements Transformer {
+        
+        static volatile boolean created;
+        
+        public MarkerTransformer() {
+            created = true;
+        }
+        
+        @Override
+        public void transform(Context context) {
+        }
+    }
+}
@@ -20,6 +20,10 @@
 package org.kdp.word.test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -42,4 +46,19 @@ public class StyleTransformerTest {
         //System.out.println(result);
         Assert.assertTrue("Contains text-align", result.contains("<link rel=\"stylesheet\" type=\"text/css\" href=\"external.css\" />"));
     }
+
+    @Test
+    public void testClassWithoutRule() throws Exception {
+        
+        Path infile = Paths.get("target/style/norule.html");
+        Files.createDirectories(infile.getParent());
+        String content = "<html><head><title>Styles</title></head><body><p class=MsoTitle>Title</p><p class=NoRule>One</p><p class=NoRule>Two</p></body></html>";
+        Files.write(infile, content.getBytes(StandardCharsets.UTF_8));
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.compact().build();
+        String result = parser.process(infile.toFile());
+        Assert.assertTrue("Contains title: " + result, result.contains("<p class=\"title\">Title</p>"));
+        Assert.assertTrue("Removed class: " + result, result.contains("<p>One</p><p>Two</p>"));
+    }
 }
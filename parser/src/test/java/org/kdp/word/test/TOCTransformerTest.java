@@ -19,9 +19,9 @@
  */
 package org.kdp.word.test;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -51,13 +51,9 @@ public class TOCTransformerTest {
         Assert.assertTrue("Exists WordSection1-TOC.html", tocfile.exists());
         
         List<String> lines = new ArrayList<>();
-        BufferedReader br = new BufferedReader(new FileReader(tocfile));
-        String line = br.readLine();
-        while (line != null) {
+        for (String line : Files.readAllLines(tocfile.toPath(), StandardCharsets.UTF_8)) {
             lines.add(line.trim());
-            line = br.readLine();
         }
-        br.close();
         
         Assert.assertTrue("Contains ol class", contains(lines, "<ol class=\"Toc\">"));
         Assert.assertTrue("Contains li class", contains(lines, "<li class=\"MsoToc1\">"));
@@ -66,6 +62,66 @@ public class TOCTransformerTest {
         Assert.assertTrue("Contains #_Toc4", contains(lines, "<a href=\"WebPage02.html#_Toc4\">Chapter 4</a>"));
     }
 
+    @Test
+    public void testNestedTOC() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("WebPage09.html").pretty().build();
+        
+        File infile = new File("src/test/resources/WebPage09.html");
+        parser.process(infile);
+        
+        File tocfile = new File("target/book/WordSection1-TOC.html");
+        Assert.assertTrue("Exists WordSection1-TOC.html", tocfile.exists());
+        
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(tocfile.toPath(), StandardCharsets.UTF_8)) {
+            lines.add(line.trim());
+        }
+        
+        Assert.assertTrue("Contains li class", contains(lines, "<li class=\"MsoToc2\">"));
+        Assert.assertTrue("Contains #_Toc1", contains(lines, "<a href=\"WebPage09.html#_Toc1\">Chapter 1</a>"));
+        Assert.assertTrue("Contains #_Toc11", contains(lines, "<a href=\"WebPage09.html#_Toc11\">Section 1.1</a>"));
+        Assert.assertTrue("Contains #_Toc12", contains(lines, "WebPage09.html#_Toc12"));
+        Assert.assertTrue("Contains #_Toc2", contains(lines, "WebPage09.html#_Toc2"));
+        Assert.assertEquals("Nested ol", 2, count(lines, "<ol class=\"Toc\">"));
+    }
+
+    @Test
+    public void testUnresolvedEntry() throws Exception {
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.output("WebPage11.html").pretty().build();
+        
+        File infile = new File("src/test/resources/WebPage11.html");
+        parser.process(infile);
+        
+        File tocfile = new File("target/book/WordSection1-TOC.html");
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(tocfile.toPath(), StandardCharsets.UTF_8)) {
+            lines.add(line.trim());
+        }
+        
+        // Deeper entries without a heading anchor are left out of the TOC
+        Assert.assertTrue("Contains #_Toc11", contains(lines, "<a href=\"WebPage11.html#_Toc11\">Section 1.1</a>"));
+        Assert.assertTrue("Contains #_Toc2", contains(lines, "<a href=\"WebPage11.html#_Toc2\">Chapter 2</a>"));
+        Assert.assertEquals("One level two entry", 1, count(lines, "<li class=\"MsoToc2\">"));
+        Assert.assertTrue("Keeps Section 1.2", contains(lines, "Section 1.2"));
+        
+        // Heading text that looks like a level key is not matched
+        Assert.assertFalse("No #_Toc3", contains(lines, "#_Toc3"));
+    }
+
+    private int count(List<String> lines, String substring) {
+        int result = 0;
+        for (String line : lines) {
+            if (line.contains(substring)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
     private boolean contains(List<String> lines, String substring) {
         for (String line : lines) {
             if (line.contains(substring)) {
@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.jdom2.Element;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.BuildManifest;
+import org.kdp.word.Parser;
+import org.kdp.word.Transformer;
+import org.kdp.word.Traversal;
+import org.kdp.word.Traversal.Visitor;
+import org.kdp.word.VisitingTransformer;
+
+/**
+ * Tests the {@see Traversal}
+ */
+public class TraversalTest {
+
+    @Test
+    public void testFusedEquivalence() throws Exception {
+        assertFusedEquivalence("WebPage07.html");
+        assertFusedEquivalence("WebPage08.html");
+    }
+
+    @Test
+    public void testBoundaryOrder() throws Exception {
+        List<String> events = new ArrayList<>();
+        processWithRecorders(true, events);
+        Assert.assertEquals(Arrays.asList("A.visit", "A.transform", "B.transform",
+                "C.visit", "D.visit", "C.transform", "D.transform"), events);
+
+        events = new ArrayList<>();
+        processWithRecorders(false, events);
+        Assert.assertEquals(Arrays.asList("A.visit", "A.transform", "B.transform",
+                "C.visit", "C.transform", "D.visit", "D.transform"), events);
+    }
+
+    private void processWithRecorders(boolean fused, List<String> events) throws Exception {
+        Path bookdir = Paths.get("target/fusion/recorders");
+        deleteFiles(bookdir.toFile());
+        Parser parser = ParserBuilderFactory.newInstance().bookdir(bookdir.toString()).fusedTraversal(fused)
+                .transformWith(new RecordingVisitor("A", events))
+                .transformWith(new RecordingTransformer("B", events))
+                .transformWith(new RecordingVisitor("C", events))
+                .transformWith(new RecordingVisitor("D", events))
+                .build();
+        parser.process(new File("src/test/resources/WebPage01.html"));
+    }
+
+    private void assertFusedEquivalence(String name) throws Exception {
+        File infile = new File("src/test/resources/" + name);
+        Path fuseddir = Paths.get("target/fusion/fused");
+        Path unfuseddir = Paths.get("target/fusion/unfused");
+        deleteFiles(fuseddir.toFile());
+        deleteFiles(unfuseddir.toFile());
+
+        Parser parser = ParserBuilderFactory.newInstance().bookdir(fuseddir.toString()).fusedTraversal(true).build();
+        String fused = parser.process(infile);
+        parser = ParserBuilderFactory.newInstance().bookdir(unfuseddir.toString()).fusedTraversal(false).build();
+        String unfused = parser.process(infile);
+        Assert.assertEquals(name, unfused, fused);
+
+        TreeSet<String> fusedFiles = listFiles(fuseddir);
+        Assert.assertFalse("Files written for " + name, fusedFiles.isEmpty());
+        Assert.assertEquals(name, listFiles(unfuseddir), fusedFiles);
+        for (String path : fusedFiles) {
+            // the manifest records file times
+            if (path.equals(BuildManifest.FILE_NAME)) {
+                continue;
+            }
+            byte[] expected = Files.readAllBytes(unfuseddir.resolve(path));
+            byte[] actual = Files.readAllBytes(fuseddir.resolve(path));
+            Assert.assertArrayEquals(name + ": " + path, expected, actual);
+        }
+    }
+
+    private TreeSet<String> listFiles(Path dir) {
+        TreeSet<String> result = new TreeSet<>();
+        listFiles(dir, dir.toFile(), result);
+        return result;
+    }
+
+    private void listFiles(Path root, File file, TreeSet<String> result) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    listFiles(root, child, result);
+                } else {
+                    result.add(root.relativize(child.toPath()).toString());
+                }
+            }
+        }
+    }
+
+    private void deleteFiles(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFiles(child);
+            }
+        }
+        file.delete();
+    }
+
+    static class RecordingTransformer implements Transformer {
+        final String name;
+        final List<String> events;
+        RecordingTransformer(String name, List<String> events) {
+            this.name = name;
+            this.events = events;
+        }
+        @Override
+        public void transform(Context context) {
+            events.add(name + ".transform");
+        }
+    }
+
+    static class RecordingVisitor extends RecordingTransformer implements VisitingTransformer {
+        RecordingVisitor(String name, List<String> events) {
+            super(name, events);
+        }
+        @Override
+        public void registerVisitors(Context context, Traversal traversal) {
+            traversal.addVisitor("html", new Visitor() {
+                @Override
+                public void visit(Context context, Element element) {
+                    events.add(name + ".visit");
+                }
+            });
+        }
+    }
+}
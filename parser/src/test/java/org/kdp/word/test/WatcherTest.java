@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.Parser;
+import org.kdp.word.ParserBuilder;
+import org.kdp.word.Watcher;
+
+/**
+ * Tests the {@see Watcher}
+ */
+public class WatcherTest {
+    
+    @Test
+    public void testConvertOnChange() throws Exception {
+        
+        Path input = Paths.get("target/watch/input/Book.html");
+        input.getParent().toFile().mkdirs();
+        String content = new String(Files.readAllBytes(Paths.get("src/test/resources/WebPage07.html")), "UTF-8");
+        Files.write(input, content.getBytes("UTF-8"));
+        Path section = Paths.get("target/watch/book/WordSection2.html");
+        Files.deleteIfExists(section);
+        
+        ParserBuilder builder = ParserBuilderFactory.newInstance();
+        Parser parser = builder.bookdir("target/watch/book").build();
+        final Watcher watcher = new Watcher(parser, Collections.singletonList(input.toFile()), false, 100);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.run();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        try {
+            Assert.assertTrue("Initial conversion", waitFor(section, "Sections 2"));
+            
+            // Touch the input until the watcher has picked up the change
+            String changed = content.replace("Sections 2", "Sections Two");
+            boolean converted = false;
+            for (int i = 0; i < 10 && !converted; i++) {
+                Files.write(input, changed.getBytes("UTF-8"));
+                converted = waitFor(section, "Sections Two");
+            }
+            Assert.assertTrue("Converted on change", converted);
+        } finally {
+            thread.interrupt();
+            thread.join(5000);
+        }
+        Assert.assertFalse("Watcher stopped", thread.isAlive());
+    }
+
+    private boolean waitFor(Path path, String text) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            File file = path.toFile();
+            if (file.isFile() && new String(Files.readAllBytes(path), "UTF-8").contains(text)) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Word2Mobi :: Parser
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.kdp.word.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jdom2.Element;
+import org.jdom2.output.EscapeStrategy;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kdp.word.Parser;
+import org.kdp.word.Transformer;
+import org.kdp.word.utils.XHTMLSerializer;
+
+/**
+ * Tests the {@see XHTMLSerializer}
+ */
+public class XHTMLSerializerTest {
+
+    static final String[] ENCODINGS = new String[] { "UTF-8", "ISO-8859-1", "US-ASCII" };
+
+    // markup chars, quotes, non-ASCII, a char outside Latin-1 and a surrogate pair
+    static final String VALUE = "a&b <c> \"d\" 'e' fäüß € g😀h";
+
+    @Test
+    public void testXMLEscaping() throws Exception {
+        for (String encoding : ENCODINGS) {
+            XHTMLSerializer serializer = XHTMLSerializer.forXML(encoding, false);
+            Format format = Format.getRawFormat().setEncoding(encoding);
+            assertBaseline(encoding, serializer, format);
+        }
+    }
+
+    @Test
+    public void testEscapedChars() throws Exception {
+
+        // Get hold of a context with the escaped.chars of the test config
+        final Transformer.Context[] contexts = new Transformer.Context[1];
+        Parser parser = ParserBuilderFactory.newInstance().bookdir("target/serializer").transformWith(new Transformer() {
+            @Override
+            public void transform(Context context) {
+                contexts[0] = context;
+            }
+        }).build();
+        parser.process(new File("src/test/resources/WebPage01.html"));
+
+        final Set<Character> escaped = new HashSet<>();
+        for (String hexcode : parser.getProperty(Parser.PROPERTY_ESCAPED_CHARS).split(",")) {
+            escaped.add((char) Integer.decode(hexcode.trim()).intValue());
+        }
+        Assert.assertTrue(escaped.contains('ä'));
+
+        for (String encoding : ENCODINGS) {
+            final EscapeStrategy strategy = Format.getRawFormat().setEncoding(encoding).getEscapeStrategy();
+            Format format = Format.getRawFormat().setEncoding(encoding).setEscapeStrategy(new EscapeStrategy() {
+                @Override
+                public boolean shouldEscape(char ch) {
+                    return escaped.contains(ch) || strategy.shouldEscape(ch);
+                }
+            });
+            assertBaseline(encoding, XHTMLSerializer.forContext(contexts[0], encoding), format);
+        }
+    }
+
+    private void assertBaseline(String encoding, XHTMLSerializer serializer, Format format) throws Exception {
+        Element element = new Element("span");
+        element.setAttribute("title", VALUE);
+        element.setAttribute("alt", "tab\tnl\ncr\r");
+        element.addContent(VALUE);
+        element.addContent(new Element("b").setAttribute("class", "q\"&'").setText("x<y>z&ö"));
+        element.addContent("😀");
+
+        String expected = new XMLOutputter(format).outputString(element);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.write("", element, 0, "", Channels.newChannel(out));
+        String actual = new String(out.toByteArray(), encoding);
+
+        Assert.assertEquals(encoding, expected, actual);
+    }
+}